@@ -21,6 +21,11 @@ import java.net.URLClassLoader;
 
 public class CoreDependenciesClassLoader extends URLClassLoader implements EnvironmentHost
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     public CoreDependenciesClassLoader(URL[] urls, RootClassLoader parent)
     {
         super(urls, parent);
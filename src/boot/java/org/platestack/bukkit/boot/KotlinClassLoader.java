@@ -21,6 +21,11 @@ import java.net.URLClassLoader;
 
 public class KotlinClassLoader extends URLClassLoader
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     public KotlinClassLoader(URL[] urls, ClassLoader parent)
     {
         super(urls, parent);
@@ -46,6 +46,11 @@ import java.util.stream.Stream;
 
 final public class PlateStackLoader extends JavaPlugin
 {
+    /**
+     * The booted scanner, it's shutdown when the plugin is disabled
+     */
+    private Class<?> bootClass;
+
     @Override
     public final void onEnable()
     {
@@ -245,6 +250,7 @@ final public class PlateStackLoader extends JavaPlugin
                     .getDeclaredMethod("boot", JavaPlugin.class, RootClassLoader.class);
             method.setAccessible(true);
             method.invoke(null, this, rootClassLoader);
+            this.bootClass = bootClass;
 
             // Export the mappings for debug reference
             scanningClassLoader.getEnvironment().getClass().getDeclaredMethod("export", File.class)
@@ -293,6 +299,26 @@ final public class PlateStackLoader extends JavaPlugin
         }
     }
 
+    @Override
+    public final void onDisable()
+    {
+        final Class<?> bootClass = this.bootClass;
+        if(bootClass == null)
+            return;
+
+        this.bootClass = null;
+        try
+        {
+            final Method method = bootClass.getDeclaredMethod("shutdown", JavaPlugin.class);
+            method.setAccessible(true);
+            method.invoke(null, this);
+        }
+        catch(Throwable e)
+        {
+            getLogger().log(Level.SEVERE, "Failed to shutdown the PlateStack scanner", e);
+        }
+    }
+
     private void download(final URL url, final Path toPath)
             throws IOException
     {
@@ -23,6 +23,11 @@ import java.util.stream.Stream;
 
 public class RootClassLoader extends URLClassLoader implements EnvironmentHost
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     public RootClassLoader(URL[] modules, URL[] urls, ScannerClassLoader parent)
     {
         super(Stream.concat(Arrays.stream(modules), Arrays.stream(urls)).toArray(URL[]::new), parent);
@@ -18,6 +18,11 @@ package org.platestack.bukkit.boot;
 
 public class ScannerClassLoader extends ClassLoader implements EnvironmentHost
 {
+    static
+    {
+        registerAsParallelCapable();
+    }
+
     private Object environment;
 
     public ScannerClassLoader(ClassLoader parent)
@@ -17,6 +17,7 @@
 package org.platestack.bukkit.scanner;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.platestack.bukkit.scanner.mappings.Mappings;
 
 import java.io.IOException;
@@ -27,4 +28,16 @@ public interface MappingsProvider
     @NotNull
     Mappings invoke(@NotNull String minecraftVersion, @NotNull String bukkitVersion, @NotNull String packageVersion)
             throws IOException;
+
+    /**
+     * Identifies the raw sources of the mappings which would be returned by {@link #invoke(String, String, String)}
+     * without parsing them, so derived data can be validated cheaply.
+     * @return A string which changes whenever the sources changes or {@code null} if the provider can't tell
+     */
+    @Nullable
+    default String fingerprint(@NotNull String minecraftVersion, @NotNull String bukkitVersion, @NotNull String packageVersion)
+            throws IOException
+    {
+        return null;
+    }
 }
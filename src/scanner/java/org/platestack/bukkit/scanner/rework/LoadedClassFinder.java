@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Calls {@code ClassLoader.findLoadedClass(String)} through a method handle which is bound once.
+ *
+ * This is written in Java because Kotlin doesn't compile exact method handle invocations.
+ */
+final class LoadedClassFinder
+{
+    @Nullable
+    private static final MethodHandle FIND_LOADED_CLASS;
+
+    static
+    {
+        MethodHandle handle;
+        try
+        {
+            Method method = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            method.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(method);
+        }
+        catch(Exception e)
+        {
+            System.err.println("Unable to access ClassLoader.findLoadedClass, all classes will be considered unloaded: " + e);
+            handle = null;
+        }
+        FIND_LOADED_CLASS = handle;
+    }
+
+    private LoadedClassFinder()
+    {
+    }
+
+    /**
+     * @return The class with the given binary name if the class loader is its initiating loader, null otherwise
+     */
+    @Nullable
+    static Class<?> findLoadedClass(@NotNull ClassLoader classLoader, @NotNull String name)
+    {
+        if(FIND_LOADED_CLASS == null)
+            return null;
+
+        try
+        {
+            return (Class<?>) FIND_LOADED_CLASS.invokeExact(classLoader, name);
+        }
+        catch(RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch(Throwable e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
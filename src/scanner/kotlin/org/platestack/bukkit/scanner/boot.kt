@@ -21,21 +21,54 @@ import org.bukkit.plugin.java.JavaPlugin
 import org.platestack.bukkit.boot.BootReflectionTarget
 import org.platestack.bukkit.boot.RootClassLoader
 import org.platestack.bukkit.boot.ScannerClassLoader
+import org.platestack.bukkit.scanner.mappings.Mappings
+import org.platestack.bukkit.scanner.mappings.provider.BinaryMappingsProvider
 import org.platestack.bukkit.scanner.mappings.provider.BukkitURLMappingsProvider
 import org.platestack.bukkit.scanner.mappings.provider.Srg2NotchURLMappingsProvider
+import org.platestack.bukkit.scanner.rework.BaseEnvironments
+import org.platestack.bukkit.scanner.rework.ClassResourceLoader
+import org.platestack.bukkit.scanner.rework.ClassSummary
 import org.platestack.bukkit.scanner.rework.HybridScanner
+import org.platestack.bukkit.scanner.rework.JarResourceLoader
 import org.platestack.bukkit.scanner.rework.RemapEnvironment
+import org.platestack.bukkit.scanner.rework.RemapEnvironmentSnapshot
+import org.platestack.bukkit.scanner.rework.ResourceLoader
 import org.platestack.bukkit.scanner.structure.ClassIdentifier
 import org.platestack.bukkit.scanner.structure.PackageIdentifier
 import org.platestack.bukkit.scanner.structure.PackageMove
+import org.platestack.bukkit.scanner.transform.ClassDumper
+import org.platestack.bukkit.scanner.transform.EnvironmentRemapper
+import org.platestack.bukkit.scanner.transform.MainClassLoader
+import org.platestack.bukkit.scanner.transform.MainTransformerClassLoader
+import org.platestack.bukkit.scanner.transform.RemapClassCache
+import org.platestack.bukkit.scanner.transform.RemapClassLoader
+import java.io.Closeable
 import java.io.File
 import java.net.URL
+import java.util.logging.Level
 
 @BootReflectionTarget
 private fun boot(plugin: JavaPlugin, root: RootClassLoader) {
-    val environment = RemapEnvironment()
+    val (base, baseFingerprint) = if(plugin.config.getBoolean("remap.base-snapshots", true)) loadBaseEnvironment(plugin) else null to "none"
+    val environment = RemapEnvironment(base)
+    if(plugin.config.contains("remap.sealed-packages"))
+        environment.sealedPackages = plugin.config.getStringList("remap.sealed-packages")
     (root.parent as ScannerClassLoader).environment = environment
 
+    sequenceOf(
+            RemapClassLoader::class.java to RemapClassLoader.isParallelCapable,
+            MainClassLoader::class.java to MainClassLoader.isParallelCapable,
+            MainTransformerClassLoader::class.java to MainTransformerClassLoader.isParallelCapable
+    ).filterNot { it.second }.forEach { (loader, _) ->
+        plugin.logger.warning("${loader.simpleName} could not be registered as parallel capable, its classes will be loaded under a single lock")
+    }
+
+    if(plugin.config.getBoolean("remap.dump.enabled", false)) {
+        val output = File(plugin.config.getString("remap.dump.output", "classes"))
+        plugin.logger.info("The remapped classes will be dumped to $output")
+        RemapClassLoader.dumper = ClassDumper(output, plugin.logger)
+    }
+
     //TODO Change the default repository
     val repository = URL(plugin.config.getString("remap.repository", File("D:\\_InteliJ\\org.platestack\\Mappings").toURI().toURL().toString()))
 
@@ -43,13 +76,111 @@ private fun boot(plugin: JavaPlugin, root: RootClassLoader) {
     val bukkitVersion = Bukkit.getBukkitVersion()
     val packageVersion = Bukkit.getServer().javaClass.`package`.name.substringAfterLast('.')
 
-    val srgProvider = Srg2NotchURLMappingsProvider(repository, plugin.logger)
-    val srg2notchMappings = srgProvider(minecraftVersion, bukkitVersion, packageVersion)
+    val binaryMappings = plugin.config.getBoolean("remap.binary-mappings", true)
+    val binaryDir = File(plugin.dataFolder, "mappings/binary")
+
+    val srgProvider = Srg2NotchURLMappingsProvider(repository, plugin.logger).let {
+        if(binaryMappings) BinaryMappingsProvider(binaryDir, "srg2notch", plugin.logger, it) else it
+    }
+
+    val bukkitProvider = BukkitURLMappingsProvider(repository, plugin.logger, true).let {
+        if(binaryMappings) BinaryMappingsProvider(binaryDir, "notch2craft", plugin.logger, it) else it
+    }
+
+    // The mappings are only parsed when the snapshot can't be used
+    val mappings = lazy {
+        srgProvider(minecraftVersion, bukkitVersion, packageVersion) to bukkitProvider(minecraftVersion, bukkitVersion, packageVersion)
+    }
+
+    val sources = listOf(srgProvider, bukkitProvider).map { it.fingerprint(minecraftVersion, bukkitVersion, packageVersion) }
+    val inputsHash =
+            if(null in sources) mappings.value.let { (srg2notch, notch2craft) -> RemapEnvironmentSnapshot.hash(srg2notch, notch2craft) }
+            else RemapEnvironmentSnapshot.hash(*sources.requireNoNulls().toTypedArray())
 
-    val bukkitProvider = BukkitURLMappingsProvider(repository, plugin.logger, true)
-    val notch2craftMappings = bukkitProvider(minecraftVersion, bukkitVersion, packageVersion)
+    val snapshotFile = File(plugin.dataFolder, "mappings/srg2craft.snapshot")
+    val snapshotKey = RemapEnvironmentSnapshot.Key(minecraftVersion, bukkitVersion, packageVersion, inputsHash, baseFingerprint)
+    val useSnapshot = plugin.config.getBoolean("remap.snapshot", true)
+
+    val remapFingerprint = EnvironmentRemapper.fingerprint(snapshotKey)
+    RemapClassLoader.fingerprint = remapFingerprint
+
+    if(plugin.config.getBoolean("remap.cache.enabled", true)) {
+        val cacheFile = File(plugin.dataFolder, plugin.config.getString("remap.cache.file", "cache/remapped-classes.cache"))
+        try {
+            RemapClassLoader.cache = RemapClassCache(cacheFile, remapFingerprint, plugin.logger)
+        }
+        catch (e: Exception) {
+            plugin.logger.log(Level.WARNING, "Failed to open the remapped class cache $cacheFile, it will not be used", e)
+        }
+    }
+
+    val snapshot = if(!useSnapshot) null else try {
+        RemapEnvironmentSnapshot.read(snapshotFile, snapshotKey, base)?.also {
+            plugin.logger.info("Loaded the SRG->CraftBukkit environment from the snapshot $snapshotFile")
+        }
+    }
+    catch (e: Exception) {
+        plugin.logger.log(Level.WARNING, "Failed to load the environment snapshot $snapshotFile, it will be rebuilt", e)
+        null
+    }
+
+    val srg2craft = snapshot ?: buildEnvironment(plugin, root, base, packageVersion, mappings.value.first, mappings.value.second).also {
+        if(useSnapshot) {
+            try {
+                RemapEnvironmentSnapshot.write(it, snapshotKey, snapshotFile)
+            }
+            catch (e: Exception) {
+                plugin.logger.log(Level.WARNING, "Failed to save the environment snapshot $snapshotFile", e)
+            }
+        }
+    }
+
+    environment.putAll(srg2craft)
+}
+
+/**
+ * Releases the remapped class cache and finishes the class dumper, called when the plugin is disabled.
+ */
+@BootReflectionTarget
+private fun shutdown(plugin: JavaPlugin) {
+    RemapClassLoader.dumper?.let {
+        RemapClassLoader.dumper = null
+        it.close()
+    }
+
+    RemapClassLoader.cache?.let {
+        RemapClassLoader.cache = null
+        try {
+            it.close()
+        }
+        catch (e: Exception) {
+            plugin.logger.log(Level.WARNING, "Failed to close the remapped class cache ${it.file}", e)
+        }
+    }
+}
+
+/**
+ * Builds the SRG -> CraftBukkit environment from the mappings, this is the expensive part of the boot which is skipped
+ * when a valid snapshot is available.
+ */
+private fun buildEnvironment(
+        plugin: JavaPlugin, root: RootClassLoader, base: RemapEnvironment?, packageVersion: String,
+        srg2notchMappings: Mappings, notch2craftMappings: Mappings
+): RemapEnvironment {
+    val parallelism = plugin.config.getInt("remap.parallelism", Runtime.getRuntime().availableProcessors())
+    val classpath = openClasspath(plugin, root)
+    val craft2notch = try {
+        val scanner = HybridScanner(root, classpath).apply {
+            parser = ClassSummary.Parser.valueOf(plugin.config.getString("remap.scanner.parser", "asm").toUpperCase())
+        }
+        notch2craftMappings.inverse().toFullStructure(scanner, parallelism, base).also {
+            plugin.logger.info("Scanned the server classes: ${scanner.hotScans} hot scans, ${scanner.coldScans} cold scans")
+        }
+    }
+    finally {
+        (classpath as? Closeable)?.close()
+    }
 
-    val craft2notch = notch2craftMappings.inverse().toFullStructure(HybridScanner(root))
     val normalNMS = PackageIdentifier("net/minecraft/server").toChange()
     sequenceOf("MinecraftServer", "ServerStatisticManager")
             .map { ClassIdentifier("net/minecraft/server/$packageVersion/$it") }
@@ -104,9 +235,60 @@ private fun boot(plugin: JavaPlugin, root: RootClassLoader) {
 
     val srg2craft = notch2srg.inverse().also { it.applyToForeign(notch2craftMappings) }
     srg2craft.export(File(plugin.dataFolder, "mappings/srg2craf"))
+    return srg2craft
+}
 
-    environment.apply {
-        (packages as MutableMap) += srg2craft.packages
-        (classes as MutableMap) += srg2craft.classes
+/**
+ * Loads the prebuilt structures of the JDK and of the Bukkit API, building them on the first boot of each version.
+ * @return The Bukkit API environment, whose parent is the JDK environment, or `null` if they are not available,
+ * and the fingerprint of the key of the returned environment or `none`
+ */
+private fun loadBaseEnvironment(plugin: JavaPlugin): Pair<RemapEnvironment?, String> {
+    val parallelism = plugin.config.getInt("remap.parallelism", Runtime.getRuntime().availableProcessors())
+    val dir = File(plugin.dataFolder, "mappings/base")
+    return try {
+        val jdk = BaseEnvironments.jdk(File(dir, "jdk.snapshot"), plugin.logger, parallelism)
+        val jdkKey = BaseEnvironments.jdkKey()
+        val api = Bukkit::class.java.protectionDomain?.codeSource?.location
+                ?.takeIf { it.protocol == "file" }
+                ?.let { File(it.toURI()) }
+                ?.takeIf { it.isFile }
+                ?: return jdk to jdkKey.fingerprint
+
+        BaseEnvironments.jar(
+                File(dir, "bukkit.snapshot"), api, Bukkit.getBukkitVersion(),
+                { it.startsWith("org/bukkit/") && !it.startsWith("org/bukkit/craftbukkit/") },
+                jdk, jdkKey, ClassResourceLoader(Bukkit::class.java.classLoader), plugin.logger, parallelism
+        ).let {
+            plugin.logger.info("Loaded ${jdk.classes.size} JDK and ${it.classes.size} Bukkit API base structures")
+            it to BaseEnvironments.jarKey(api, Bukkit.getBukkitVersion(), jdkKey).fingerprint
+        }
+    }
+    catch (e: Exception) {
+        plugin.logger.log(Level.WARNING, "Failed to load the base structures, the JDK and Bukkit API classes will be scanned", e)
+        null to "none"
+    }
+}
+
+/**
+ * Indexes the server jar, the plugin jar and the jars of the root class loader in the same order that the class loaders
+ * look them up, the other resources are still loaded from the root class loader.
+ */
+private fun openClasspath(plugin: JavaPlugin, root: RootClassLoader): ResourceLoader {
+    val fallback = ClassResourceLoader(root)
+    val jars = (sequenceOf(Bukkit::class.java, plugin.javaClass).map { it.protectionDomain?.codeSource?.location } + root.urLs.asSequence())
+            .filterNotNull()
+            .filter { it.protocol == "file" }
+            .map { File(it.toURI()) }
+            .filter { it.isFile }
+            .distinct()
+            .toList()
+
+    return try {
+        JarResourceLoader(jars, fallback)
+    }
+    catch (e: Exception) {
+        plugin.logger.log(Level.WARNING, "Failed to index the server classpath, the classes will be read through the class loaders", e)
+        fallback
     }
 }
@@ -0,0 +1,54 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner
+
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+
+/**
+ * Writes the file contents to a temporary file on the same directory, syncs it to the disk and then moves it over
+ * this file, so readers never see a partially written file.
+ */
+fun File.writeAtomically(writer: (OutputStream) -> Unit) {
+    val dir = absoluteFile.parentFile
+    dir.mkdirs()
+    val temp = File.createTempFile(name, ".tmp", dir)
+    try {
+        FileOutputStream(temp).use { fileOut ->
+            val out = BufferedOutputStream(fileOut)
+            writer(out)
+            out.flush()
+            fileOut.fd.sync()
+        }
+
+        try {
+            Files.move(temp.toPath(), toPath(), ATOMIC_MOVE, REPLACE_EXISTING)
+        }
+        catch (ignored: AtomicMoveNotSupportedException) {
+            Files.move(temp.toPath(), toPath(), REPLACE_EXISTING)
+        }
+    }
+    finally {
+        temp.delete()
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings
+
+import org.platestack.bukkit.scanner.*
+import org.platestack.bukkit.scanner.structure.*
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * A compact binary representation of [Mappings].
+ *
+ * Layout, all numbers are big-endian 32 bits integers:
+ *
+ * Section         | Contents
+ * --------------- | ------------------------------------------------------------------
+ * Header          | magic, version, CRC32 of the rest of the file, source, string count, string data size, PK, CL, FD and MD record counts
+ * String offsets  | `string count + 1` offsets relative to the string data, the last one is the data size
+ * String data     | The deduplicated UTF-8 strings, without separators
+ * PK records      | from package, to package
+ * CL records      | from class, to class
+ * FD records      | from owner, from name, to owner, to name
+ * MD records      | from owner, from name, from descriptor, to owner, to name, to descriptor
+ *
+ * All records refers to indexes on the string table, packages and classes are stored by their full names.
+ * The default package is stored as an empty string.
+ *
+ * The source is the string id of the fingerprint of the sources which were parsed to create the mappings, or `-1`
+ * if it's unknown. It allows a reader to detect that the mappings are outdated without parsing the sources again.
+ */
+object BinaryMappings {
+    private const val MAGIC = 0x50534D42 // PSMB
+    const val FORMAT_VERSION = 2
+
+    private const val HEADER_SIZE = 10 * 4
+
+    /**
+     * Writes the mappings to the output in the binary format, the stream is not closed.
+     * @param source The fingerprint of the sources of the mappings, see [org.platestack.bukkit.scanner.MappingsProvider.fingerprint]
+     */
+    fun write(mappings: Mappings, output: OutputStream, source: String? = null) {
+        val strings = LinkedHashMap<String, Int>()
+        fun id(value: String) = strings.getOrPut(value) { strings.size }
+
+        val sourceId = source?.let { id(it) } ?: -1
+
+        val packages = IntArray(mappings.packages.size * 2)
+        var index = 0
+        mappings.packages.forEach { (from, to) ->
+            packages[index++] = id(from.fullName)
+            packages[index++] = id(to.fullName)
+        }
+
+        val classes = IntArray(mappings.classes.size * 2)
+        index = 0
+        mappings.classes.forEach { (from, to) ->
+            classes[index++] = id(from.fullName)
+            classes[index++] = id(to.fullName)
+        }
+
+        val fields = IntArray(mappings.fields.size * 4)
+        index = 0
+        mappings.fields.forEach { (from, to) ->
+            fields[index++] = id(from.first.fullName)
+            fields[index++] = id(from.second.name)
+            fields[index++] = id(to.first.fullName)
+            fields[index++] = id(to.second.name)
+        }
+
+        val methods = IntArray(mappings.methods.size * 6)
+        index = 0
+        mappings.methods.forEach { (from, to) ->
+            methods[index++] = id(from.first.fullName)
+            methods[index++] = id(from.second.name)
+            methods[index++] = id(from.second.descriptor)
+            methods[index++] = id(to.first.fullName)
+            methods[index++] = id(to.second.name)
+            methods[index++] = id(to.second.descriptor)
+        }
+
+        val encoded = strings.keys.map { it.toByteArray(Charsets.UTF_8) }
+        val dataSize = encoded.sumBy { it.size }
+
+        // The body is buffered because the header contains its checksum
+        val bytes = ByteArrayOutputStream(HEADER_SIZE + (encoded.size + 1) * 4 + dataSize
+                + (packages.size + classes.size + fields.size + methods.size) * 4)
+        val out = DataOutputStream(bytes)
+
+        var offset = 0
+        encoded.forEach {
+            out.writeInt(offset)
+            offset += it.size
+        }
+        out.writeInt(offset)
+        encoded.forEach { out.write(it) }
+
+        sequenceOf(packages, classes, fields, methods).forEach { records ->
+            records.forEach { out.writeInt(it) }
+        }
+
+        out.flush()
+        val body = bytes.toByteArray()
+
+        val header = DataOutputStream(output)
+        header.writeInt(MAGIC)
+        header.writeInt(FORMAT_VERSION)
+        header.writeInt(CRC32().apply { update(body) }.value.toInt())
+        header.writeInt(sourceId)
+        header.writeInt(encoded.size)
+        header.writeInt(dataSize)
+        header.writeInt(mappings.packages.size)
+        header.writeInt(mappings.classes.size)
+        header.writeInt(mappings.fields.size)
+        header.writeInt(mappings.methods.size)
+        header.flush()
+        output.write(body)
+        output.flush()
+    }
+
+    /**
+     * Reads only the fingerprint of the sources of the mappings, the checksum is not verified.
+     * @return The fingerprint or `null` if the mappings were written without one
+     * @throws IOException If the buffer does not contains valid binary mappings
+     */
+    fun source(buffer: ByteBuffer): String? {
+        val header = Header(buffer)
+        return if(header.source < 0) null else header.string(header.source)
+    }
+
+    private class Header(val buffer: ByteBuffer) {
+        val size = buffer.limit()
+        init {
+            if(size < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                throw IOException("The buffer does not contains binary mappings")
+
+            val version = buffer.getInt(4)
+            if(version != FORMAT_VERSION)
+                throw IOException("Unsupported binary mappings version: $version")
+        }
+
+        val crc = buffer.getInt(8)
+        val source = buffer.getInt(12)
+        val stringCount = buffer.getInt(16)
+        val dataSize = buffer.getInt(20)
+        val packageCount = buffer.getInt(24)
+        val classCount = buffer.getInt(28)
+        val fieldCount = buffer.getInt(32)
+        val methodCount = buffer.getInt(36)
+
+        val offsetsStart = HEADER_SIZE
+        val dataStart = offsetsStart + (stringCount + 1) * 4
+        val recordsStart = dataStart + dataSize
+
+        init {
+            val expected = recordsStart.toLong() + (packageCount * 2L + classCount * 2L + fieldCount * 4L + methodCount * 6L) * 4L
+            if(stringCount < 0 || dataSize < 0 || source < -1 || source >= stringCount || expected != size.toLong())
+                throw IOException("The binary mappings are truncated or corrupted")
+        }
+
+        private var scratch = ByteArray(64)
+
+        fun string(id: Int): String {
+            if(id < 0 || id >= stringCount)
+                throw IOException("Invalid string id: $id")
+
+            val start = buffer.getInt(offsetsStart + id * 4)
+            val end = buffer.getInt(offsetsStart + id * 4 + 4)
+            val length = end - start
+            if(start < 0 || length < 0 || end > dataSize)
+                throw IOException("Invalid string entry: $id")
+
+            if(scratch.size < length)
+                scratch = ByteArray(length)
+
+            for(i in 0 until length)
+                scratch[i] = buffer.get(dataStart + start + i)
+
+            return String(scratch, 0, length, Charsets.UTF_8)
+        }
+
+        fun verify() {
+            val body = buffer.duplicate()
+            body.position(HEADER_SIZE)
+            body.limit(size)
+            if(CRC32().apply { update(body) }.value.toInt() != crc)
+                throw IOException("Checksum mismatch, the binary mappings are corrupted")
+        }
+    }
+
+    /**
+     * Reads mappings from a buffer in the binary format, usually a [java.nio.MappedByteBuffer].
+     *
+     * Every string is decoded only once and every identifier is created only once per distinct string,
+     * no intermediary line or token objects are created.
+     *
+     * @throws IOException If the buffer does not contains valid binary mappings or if the checksum doesn't match
+     */
+    fun read(buffer: ByteBuffer): Mappings {
+        val header = Header(buffer)
+        header.verify()
+
+        val stringCount = header.stringCount
+        val strings = arrayOfNulls<String>(stringCount)
+        fun string(id: Int) = strings[id] ?: header.string(id).also { strings[id] = it }
+
+        val packageIds = arrayOfNulls<PackageIdentifier>(stringCount)
+        fun packageId(id: Int) = packageIds[id] ?: PackageIdentifier(string(id)).also { packageIds[id] = it }
+
+        val classIds = arrayOfNulls<ClassIdentifier>(stringCount)
+        fun classId(id: Int) = classIds[id] ?: ClassIdentifier(string(id)).also { classIds[id] = it }
+
+        val fieldIds = arrayOfNulls<FieldIdentifier>(stringCount)
+        fun fieldId(id: Int) = fieldIds[id] ?: FieldIdentifier(string(id)).also { fieldIds[id] = it }
+
+        var position = header.recordsStart
+        fun next() = buffer.getInt(position).also { position += 4 }
+
+        val mappings = Mappings()
+        repeat(header.packageCount) {
+            mappings.packages[packageId(next())] = packageId(next())
+        }
+
+        repeat(header.classCount) {
+            mappings.classes[classId(next())] = classId(next())
+        }
+
+        repeat(header.fieldCount) {
+            mappings.fields[FieldToken(classId(next()), fieldId(next()))] = FieldToken(classId(next()), fieldId(next()))
+        }
+
+        repeat(header.methodCount) {
+            val from = MethodToken(classId(next()), MethodIdentifier(string(next()), string(next())))
+            mappings.methods[from] = MethodToken(classId(next()), MethodIdentifier(string(next()), string(next())))
+        }
+
+        return mappings
+    }
+}
@@ -20,8 +20,11 @@ import org.platestack.bukkit.scanner.*
 import org.platestack.bukkit.scanner.rework.ClassScanner
 import org.platestack.bukkit.scanner.rework.RemapEnvironment
 import org.platestack.bukkit.scanner.structure.*
+import java.io.OutputStream
 import java.io.Writer
 import java.util.*
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 
 class Mappings {
     val packages = PackageMapping()
@@ -57,6 +60,12 @@ class Mappings {
         }
     }
 
+    /**
+     * Exports the mappings in the compact format described at [BinaryMappings]
+     * @param source The fingerprint of the sources which were parsed to create this mappings
+     */
+    fun exportBinary(output: OutputStream, source: String? = null) = BinaryMappings.write(this, output, source)
+
     private fun <T> Map<T,T>.inverse() = map { it.value to it.key }
 
     fun removeUselessEntries() {
@@ -88,13 +97,42 @@ class Mappings {
         it.fields += fields.inverse()
     }
 
-    fun toFullStructure(scanner: ClassScanner): RemapEnvironment {
-        val environment = RemapEnvironment()
+    /**
+     * Scans all mapped classes and members and applies the mappings to the scanned structures.
+     *
+     * The mapped classes are passed to [ClassScanner.prefetch] before the scans, so the scanner can read them in bulk.
+     *
+     * @param parallelism How many threads may scan classes at the same time. When greater than `1` the classes are
+     * scanned by a [ForkJoinPool] with that parallelism, otherwise everything is scanned on the caller thread.
+     * The resulting environment is the same regardless of the parallelism and of the thread scheduling.
+     * @param parentEnvironment The parent of the resulting environment, the classes which it provides are not scanned again
+     */
+    fun toFullStructure(scanner: ClassScanner, parallelism: Int = 1, parentEnvironment: RemapEnvironment? = null): RemapEnvironment {
+        val environment = RemapEnvironment(parentEnvironment)
 
         packages.forEach { (from, to) -> environment[from] = PackageMove(from.toChange(), to.toChange()) }
-        classes.keys.forEach { id -> scanner.provideFull(environment, id) }
-        methods.keys.forEach { (owner, id) -> scanner.provide(environment, owner, id) }
-        fields.keys.forEach { (owner, id) -> scanner.provide(environment, owner, id) }
+
+        val owners = LinkedHashSet<ClassIdentifier>(classes.keys)
+        methods.keys.mapTo(owners) { it.first }
+        fields.keys.mapTo(owners) { it.first }
+        scanner.prefetch(owners, parallelism)
+
+        if(parallelism > 1) {
+            val pool = ForkJoinPool(parallelism)
+            try {
+                pool.invoke(ScanTask(classes.keys.toList()) { id -> scanner.provideFull(environment, id) })
+                pool.invoke(ScanTask(methods.keys.toList()) { (owner, id) -> scanner.provide(environment, owner, id) })
+                pool.invoke(ScanTask(fields.keys.toList()) { (owner, id) -> scanner.provide(environment, owner, id) })
+            }
+            finally {
+                pool.shutdown()
+            }
+        }
+        else {
+            classes.keys.forEach { id -> scanner.provideFull(environment, id) }
+            methods.keys.forEach { (owner, id) -> scanner.provide(environment, owner, id) }
+            fields.keys.forEach { (owner, id) -> scanner.provide(environment, owner, id) }
+        }
 
 
 
@@ -137,21 +175,25 @@ class Mappings {
             }
         }
 
-        debug = environment.classes.values.asSequence()
+        // The environment maps are concurrent and have no order, the renames are applied in sorted order so a change
+        // shared by many entries is always renamed by the same entry, regardless of the thread scheduling
+        val sorted = environment.classes.entries.sortedBy { it.key }.map { it.value }
+
+        debug = sorted.asSequence()
                 .onEach { it.`class`.remap() }
                 .map { it.`class`.from to it.`class`.to }
                 .toMap()
         full.classes += debug
 
-        debug = environment.classes.values.asSequence()
-                .flatMap { c -> c.fields.values.asSequence().map { c to it } }
+        debug = sorted.asSequence()
+                .flatMap { c -> c.fields.entries.sortedBy { it.key }.asSequence().map { c to it.value } }
                 .onEach { it.second.remap() }
                 .map { (c, f) -> FieldToken(c.`class`.from, f.field.from) to FieldToken(c.`class`.to, f.field.to) }
                 .toMap()
         full.fields += debug
 
-        debug = environment.classes.values.asSequence()
-                .flatMap { c -> c.methods.values.asSequence().map { c to it } }
+        debug = sorted.asSequence()
+                .flatMap { c -> c.methods.entries.sortedBy { it.key }.asSequence().map { c to it.value } }
                 .onEach { it.second.remap() }
                 .map { (c, m) -> MethodToken(c.`class`.from, m.method.from) to MethodToken(c.`class`.to, m.method.to) }
                 .toMap()
@@ -159,3 +201,26 @@ class Mappings {
         return environment
     }
 }
+
+/**
+ * Splits the scan of independent entries between the threads of a [ForkJoinPool]
+ */
+private class ScanTask<T>(val entries: List<T>, val from: Int, val to: Int, val action: (T) -> Unit) : RecursiveAction() {
+    constructor(entries: List<T>, action: (T) -> Unit): this(entries, 0, entries.size, action)
+
+    override fun compute() {
+        if(to - from <= THRESHOLD) {
+            for(index in from until to) {
+                action(entries[index])
+            }
+        }
+        else {
+            val middle = (from + to) ushr 1
+            invokeAll(ScanTask(entries, from, middle, action), ScanTask(entries, middle, to, action))
+        }
+    }
+
+    companion object {
+        const val THRESHOLD = 16
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings.provider
+
+import org.platestack.bukkit.scanner.MappingsProvider
+import org.platestack.bukkit.scanner.mappings.BinaryMappings
+import org.platestack.bukkit.scanner.mappings.Mappings
+import org.platestack.bukkit.scanner.writeAtomically
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Loads mappings in the [BinaryMappings] format from `dir/<minecraft version>/<package version>/<name>.mappings`
+ * through a memory mapped buffer.
+ *
+ * When the file is missing, invalid or was created from sources which differs from the [source] provider fingerprint,
+ * the mappings are loaded from the [source] provider and exported to the file, so the next loads can skip the text parsing.
+ * The file is trusted without validation when the [source] is not able to give a fingerprint.
+ */
+class BinaryMappingsProvider(val dir: File, val name: String, val logger: Logger, val source: MappingsProvider? = null) : MappingsProvider {
+    private val sourceFingerprints = ConcurrentHashMap<String, String>()
+
+    fun file(minecraftVersion: String, packageVersion: String) = File(dir, "$minecraftVersion/$packageVersion/$name.mappings")
+
+    /**
+     * The fingerprint of the [source], it's computed only once per version because the sources may be remote
+     * @return The fingerprint or `null` if it's not available
+     */
+    private fun sourceFingerprint(minecraftVersion: String, bukkitVersion: String, packageVersion: String): String? {
+        val source = source ?: return null
+        val key = "$minecraftVersion/$bukkitVersion/$packageVersion"
+        sourceFingerprints[key]?.let { return it }
+        return try {
+            source.fingerprint(minecraftVersion, bukkitVersion, packageVersion)?.also { sourceFingerprints[key] = it }
+        }
+        catch (e: IOException) {
+            logger.log(Level.WARNING, "Failed to check the sources of the $name mappings, the binary mappings will not be validated", e)
+            null
+        }
+    }
+
+    /**
+     * Uses the fingerprint of the [source] when it's available, otherwise uses the fingerprint stored in the file
+     */
+    override fun fingerprint(minecraftVersion: String, bukkitVersion: String, packageVersion: String): String? {
+        sourceFingerprint(minecraftVersion, bukkitVersion, packageVersion)?.let { return it }
+        val file = file(minecraftVersion, packageVersion)
+        return try {
+            if(file.isFile) map(file) { BinaryMappings.source(it) } else null
+        }
+        catch (e: IOException) {
+            null
+        }
+    }
+
+    override fun invoke(minecraftVersion: String, bukkitVersion: String, packageVersion: String): Mappings {
+        val file = file(minecraftVersion, packageVersion)
+        val expected = sourceFingerprint(minecraftVersion, bukkitVersion, packageVersion)
+        if(file.isFile) {
+            try {
+                val mappings = map(file) { buffer ->
+                    val found = BinaryMappings.source(buffer)
+                    if(expected == null || found == expected) BinaryMappings.read(buffer)
+                    else null.also { logger.info { "The binary mappings $file were created from different sources, they will be recreated" } }
+                }
+
+                if(mappings != null) {
+                    logger.info { "Loaded ${mappings.classes.size} classes, ${mappings.fields.size} fields and ${mappings.methods.size} methods from $file" }
+                    return mappings
+                }
+            }
+            catch (e: Exception) {
+                if(source == null)
+                    throw e
+
+                logger.log(Level.WARNING, "Failed to read the binary mappings $file, it will be recreated", e)
+            }
+        }
+
+        val source = source ?: throw FileNotFoundException(file.toString())
+        return source(minecraftVersion, bukkitVersion, packageVersion).also { mappings ->
+            try {
+                file.writeAtomically { mappings.exportBinary(it, expected) }
+            }
+            catch (e: Exception) {
+                logger.log(Level.WARNING, "Failed to save the binary mappings $file", e)
+            }
+        }
+    }
+
+    fun read(file: File): Mappings = map(file) { BinaryMappings.read(it) }
+
+    private inline fun <R> map(file: File, reader: (ByteBuffer) -> R): R {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+            reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package org.platestack.bukkit.scanner.mappings.provider
 
 import org.platestack.bukkit.scanner.MappingsProvider
-import org.platestack.bukkit.scanner.filterComments
 import org.platestack.bukkit.scanner.mappings.Mappings
 import org.platestack.bukkit.scanner.structure.*
 import java.io.BufferedReader
@@ -25,14 +24,15 @@ import java.io.InputStream
 import java.io.InputStreamReader
 import java.net.URL
 import java.util.logging.Logger
-import kotlin.streams.asSequence
-import kotlin.streams.toList
 
 class BukkitURLMappingsProvider(val base: URL, val logger: Logger, val checkPackageVersion: Boolean = true) : MappingsProvider {
-    fun InputStream.lines(charset: String = "UTF-8") = BufferedReader(InputStreamReader(this, charset)).lines()!!
     fun InputStream.readLine(charset: String = "UTF-8") = BufferedReader(InputStreamReader(this, charset)).readLine()!!
 
-    override fun invoke(minecraftVersion: String, bukkitVersion: String, packageVersion: String): Mappings {
+    /**
+     * Checks if the remote mappings were made for the given package version
+     * @return The remote directory which contains the mappings
+     */
+    private fun checkRemote(minecraftVersion: String, bukkitVersion: String, packageVersion: String): URL {
         logger.info { "Checking remote bukkit package version. Expecting: $packageVersion" }
         val dir = URL(base, "craftbukkit/$minecraftVersion/")
         val remotePackageVersion = URL(dir, "version.txt").openStream().use { 'v'+it.readLine() }
@@ -44,8 +44,22 @@ class BukkitURLMappingsProvider(val base: URL, val logger: Logger, val checkPack
                 logger.warning("Using mappings for $remotePackageVersion instead of $packageVersion! Minecraft: $minecraftVersion Bukkit: $bukkitVersion")
         }
 
+        return dir
+    }
+
+    /**
+     * Hashes the raw remote files after checking the package version, the mappings are not parsed
+     */
+    override fun fingerprint(minecraftVersion: String, bukkitVersion: String, packageVersion: String): String {
+        val dir = checkRemote(minecraftVersion, bukkitVersion, packageVersion)
+        return fingerprint("csrg/$packageVersion/1", listOf("version.txt", "package.srg", "bukkit-$minecraftVersion-cl.csrg", "bukkit-$minecraftVersion-members.csrg").map { URL(dir, it) })
+    }
+
+    override fun invoke(minecraftVersion: String, bukkitVersion: String, packageVersion: String): Mappings {
+        val dir = checkRemote(minecraftVersion, bukkitVersion, packageVersion)
+
         logger.info { "Checking remote package name." }
-        URL(dir, "package.srg").openStream().use { it.lines().filterComments().toList() }.let { packages ->
+        URL(dir, "package.srg").openStream().use { MappingsLexer(InputStreamReader(it, Charsets.UTF_8)).lines() }.let { packages ->
             if(packages.size != 1 || packages.first() != "./ net/minecraft/server/") {
                 throw UnsupportedOperationException("Expected only 1 package to be ./ -> net/minecraft/server/ but got: \n${packages.joinToString("\n")}")
             }
@@ -55,24 +69,19 @@ class BukkitURLMappingsProvider(val base: URL, val logger: Logger, val checkPack
          * aaaa -> net/minecraft/server/v5/NiceName
          */
         val mappings = Mappings()
-        mappings.packages[PackageIdentifier("")] = PackageIdentifier("net/minecraft/server/$packageVersion")
+        val nms = PackageIdentifier("net/minecraft/server/$packageVersion")
+        mappings.packages[PackageIdentifier("")] = nms
 
         logger.info { "Loading bukkit class name definitions from remote" }
         URL(dir, "bukkit-$minecraftVersion-cl.csrg").openStream().use {
-            it.lines().filterComments()
-                    .map { it.split(' ', limit = 2) }
-                    .map { ClassIdentifier(it[0]) to ClassIdentifier("net/minecraft/server/$packageVersion/${it[1]}") }
-                    .asSequence().toMap()
-        }.let {
-            logger.info { "Loaded ${it.size} class name mappings" }
-            mappings.classes += it
-        }
-
-        val (fieldList, methodList) = URL(dir, "bukkit-$minecraftVersion-members.csrg").openStream().use {
-            it.lines().filterComments()
-                    .map { it.split(' ', limit = 4) }
-                    .asSequence().partition { it.size == 3 }
+            val lexer = MappingsLexer(InputStreamReader(it, Charsets.UTF_8))
+            while(lexer.next()) {
+                mappings.classes[ClassIdentifier(lexer.string(0))] =
+                        if(lexer.lastIndexOf(1, '/') < 0) ClassIdentifier(nms, lexer.string(1))
+                        else ClassIdentifier(nms.prefix + lexer.string(1))
+            }
         }
+        logger.info { "Loaded ${mappings.classes.size} class name mappings" }
 
         val emptyPackage = PackageIdentifier(null, "")
 
@@ -95,7 +104,6 @@ class BukkitURLMappingsProvider(val base: URL, val logger: Logger, val checkPack
          */
         val inverse = mappings.inverse()
 
-        val nms = PackageIdentifier("net/minecraft/server/$packageVersion")
         fun remapOrRegisterNoPackage(classId: ClassIdentifier): ClassIdentifier {
             return fromNoPackage.classes[classId] ?: classId.let {
                 val from = it
@@ -116,44 +124,46 @@ class BukkitURLMappingsProvider(val base: URL, val logger: Logger, val checkPack
                     logger.warning("Found omitted class: $it , remmaping to: $to")
 
                 mappings.classes[from] = to
-                inverse.classes[to] = from
+                // A mapped class keeps its obfuscated name when an alias of it is found, regardless of the line order
+                inverse.classes.putIfAbsent(to, from)
                 fromNoPackage.classes[from] = to
                 to
             }
         }
 
-        fieldList.asSequence().filterNot { (c, from, to) ->
-            ('(' in from || '(' in to).also {
-                if(it) logger.severe("Found a field with '(' char in it!: $c $from $to")
+        // Fields and methods are mapped in a single pass, the lines with 3 fields are fields and the others are methods
+        URL(dir, "bukkit-$minecraftVersion-members.csrg").openStream().use {
+            val lexer = MappingsLexer(InputStreamReader(it, Charsets.UTF_8))
+            while(lexer.next()) {
+                if(lexer.size == 3 && (lexer.lastIndexOf(1, '(') >= 0 || lexer.lastIndexOf(2, '(') >= 0)) {
+                    logger.severe("Found a field with '(' char in it!: ${lexer.line()}")
+                    continue
+                }
+
+                val classId = remapOrRegisterNoPackage(ClassIdentifier(lexer.string(0)))
+                if(lexer.size == 3) {
+                    mappings.fields[inverse.classes[classId]!! to FieldIdentifier(lexer.string(1))] = classId to FieldIdentifier(lexer.string(2))
+                }
+                else {
+                    val methodSignature = MethodDescriptor(lexer.string(2)) { from ->
+                        remapOrRegisterNoPackage(from).toChange()
+                    }
+
+                    val newMethod = MethodIdentifier(lexer.string(3), methodSignature.to)
+
+                    val inverseSignature = MethodDescriptor(methodSignature.to) { from ->
+                        inverse.classes[from]!!.toChange()
+                    }
+
+                    val oldMethod = MethodIdentifier(lexer.string(1), inverseSignature.to)
+
+                    mappings.methods[inverse.classes[classId]!! to oldMethod] = classId to newMethod
+                }
             }
-        }.asSequence().mapNotNull { (className, fromFieldName, toFieldName) ->
-            val classId = remapOrRegisterNoPackage(ClassIdentifier(className))
-
-            (inverse.classes[classId]!! to FieldIdentifier(fromFieldName)) to (classId to FieldIdentifier(toFieldName))
-        }.toMap().let {
-            logger.info { "Loaded ${it.size} field name mappings" }
-            mappings.fields += it
         }
 
-        methodList.associate { (className, fromMethodName, noPackageSignature, toMethodName) ->
-            val classId = remapOrRegisterNoPackage(ClassIdentifier(className)) //fromNoPackage.classes[ClassIdentifier(className)] ?: error("Unknown class while mapping $line")
-            val methodSignature = MethodDescriptor(noPackageSignature) { from->
-                remapOrRegisterNoPackage(from).toChange()
-            }
-
-            val newMethod = MethodIdentifier(toMethodName, methodSignature.to)
-
-            val inverseSignature = MethodDescriptor(methodSignature.to) { from->
-                inverse.classes[from]!!.toChange()
-            }
-
-            val oldMethod = MethodIdentifier(fromMethodName, inverseSignature.to)
-
-            (inverse.classes[classId]!! to oldMethod) to (classId to newMethod)
-        }.let {
-            logger.info { "Loaded ${it.size} method name mappings" }
-            mappings.methods += it
-        }
+        logger.info { "Loaded ${mappings.fields.size} field name mappings" }
+        logger.info { "Loaded ${mappings.methods.size} method name mappings" }
 
         return mappings
     }
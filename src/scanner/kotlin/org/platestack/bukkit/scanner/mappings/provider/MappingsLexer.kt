@@ -0,0 +1,232 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings.provider
+
+import java.io.Reader
+import java.nio.CharBuffer
+
+/**
+ * A streaming lexer of the line based mapping formats, like SRG and CSRG.
+ *
+ * The input is decoded into a char buffer which is refilled as the lines are consumed, so the memory used by the
+ * lexer depends on the length of the longest line and not on the size of the file. Blank lines and `#` comments are
+ * skipped and the other lines are trimmed and split on every space.
+ *
+ * The fields of the current line are only offsets on the buffer, they are valid until [next] is called again.
+ * They become strings only through [string], which interns them, so every distinct name is created once and the
+ * identifier pools receive the same instances again.
+ */
+internal class MappingsLexer(private val reader: Reader, capacity: Int = 8192) {
+    private var buffer = CharBuffer.allocate(capacity).also { it.flip() }
+    private var eof = false
+
+    private var starts = IntArray(8)
+    private var ends = IntArray(8)
+
+    /**
+     * The number of fields in the current line
+     */
+    var size = 0; private set
+
+    private var pool = arrayOfNulls<String>(1024)
+    private var pooled = 0
+
+    /**
+     * Moves to the next line which is not blank nor a comment
+     * @return `false` when the end of the input is reached
+     */
+    fun next(): Boolean {
+        while(true) {
+            val from = buffer.position()
+            var end = -1
+            for(index in from until buffer.limit()) {
+                if(buffer.get(index) == '\n') {
+                    end = index
+                    break
+                }
+            }
+
+            if(end < 0 && !eof) {
+                fill()
+                continue
+            }
+
+            if(end < 0) {
+                if(from == buffer.limit())
+                    return false
+
+                buffer.position(buffer.limit())
+                if(split(from, buffer.limit()))
+                    return true
+            }
+            else {
+                buffer.position(end + 1)
+                if(split(from, end))
+                    return true
+            }
+        }
+    }
+
+    private fun fill() {
+        if(buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            // A single line fills the whole buffer
+            buffer = CharBuffer.allocate(buffer.capacity() * 2).put(buffer).also { it.flip() }
+        }
+
+        buffer.compact()
+        if(reader.read(buffer) < 0)
+            eof = true
+        buffer.flip()
+    }
+
+    private fun split(from: Int, to: Int): Boolean {
+        var start = from
+        var end = to
+        while(start < end && buffer.get(start) <= ' ') start++
+        while(end > start && buffer.get(end - 1) <= ' ') end--
+
+        if(start == end || buffer.get(start) == '#')
+            return false
+
+        size = 0
+        for(index in start until end) {
+            if(buffer.get(index) == ' ') {
+                add(start, index)
+                start = index + 1
+            }
+        }
+        add(start, end)
+        return true
+    }
+
+    private fun add(start: Int, end: Int) {
+        if(size == starts.size) {
+            starts = starts.copyOf(size * 2)
+            ends = ends.copyOf(size * 2)
+        }
+
+        starts[size] = start
+        ends[size] = end
+        size++
+    }
+
+    private fun check(field: Int) {
+        if(field >= size)
+            throw IndexOutOfBoundsException("The line has only $size fields: ${line()}")
+    }
+
+    fun length(field: Int): Int {
+        check(field)
+        return ends[field] - starts[field]
+    }
+
+    /**
+     * @return The index of the last occurrence of the char in the field, relative to the field, or `-1`
+     */
+    fun lastIndexOf(field: Int, char: Char): Int {
+        check(field)
+        val start = starts[field]
+        for(index in ends[field] - 1 downTo start) {
+            if(buffer.get(index) == char)
+                return index - start
+        }
+        return -1
+    }
+
+    /**
+     * Checks if the field is exactly the given text, without creating a string
+     */
+    fun matches(field: Int, text: String): Boolean {
+        check(field)
+        return ends[field] - starts[field] == text.length && regionEquals(text, starts[field])
+    }
+
+    /**
+     * The canonical string of a field or of part of a field
+     * @param from The start of the part, relative to the field
+     * @param to The end of the part, relative to the field
+     */
+    fun string(field: Int, from: Int = 0, to: Int = length(field)): String {
+        check(field)
+        val start = starts[field] + from
+        val length = to - from
+        require(from >= 0 && to >= from && start + length <= ends[field]) { "Invalid range $from..$to of the field $field" }
+
+        var hash = 0
+        for(index in start until start + length) {
+            hash = 31 * hash + buffer.get(index).toInt()
+        }
+
+        val mask = pool.size - 1
+        var slot = hash and mask
+        while(true) {
+            val candidate = pool[slot] ?: break
+            if(candidate.length == length && candidate.hashCode() == hash && regionEquals(candidate, start))
+                return candidate
+            slot = (slot + 1) and mask
+        }
+
+        val created = String(buffer.array(), buffer.arrayOffset() + start, length)
+        pool[slot] = created
+        if(++pooled * 2 > pool.size)
+            rehash()
+        return created
+    }
+
+    private fun regionEquals(text: String, start: Int): Boolean {
+        for(index in 0 until text.length) {
+            if(buffer.get(start + index) != text[index])
+                return false
+        }
+        return true
+    }
+
+    private fun rehash() {
+        val old = pool
+        pool = arrayOfNulls(old.size * 2)
+        val mask = pool.size - 1
+        old.forEach {
+            if(it != null) {
+                var slot = it.hashCode() and mask
+                while(pool[slot] != null) slot = (slot + 1) and mask
+                pool[slot] = it
+            }
+        }
+    }
+
+    /**
+     * Reads all remaining lines as trimmed strings, for the small files which are used as lists
+     */
+    fun lines(): List<String> {
+        val lines = mutableListOf<String>()
+        while(next()) {
+            lines += line()
+        }
+        return lines
+    }
+
+    /**
+     * The trimmed text of the current line
+     */
+    fun line(): String {
+        if(size == 0)
+            return ""
+
+        val start = starts[0]
+        return String(buffer.array(), buffer.arrayOffset() + start, ends[size - 1] - start)
+    }
+}
@@ -25,8 +25,6 @@ import org.platestack.bukkit.scanner.structure.PackageIdentifier
 import java.io.Reader
 import java.net.URL
 import java.util.logging.Logger
-import kotlin.streams.asSequence
-import kotlin.streams.toList
 
 class Srg2NotchURLMappingsProvider(val base: URL, val logger: Logger) : MappingsProvider {
     companion object {
@@ -43,8 +41,18 @@ class Srg2NotchURLMappingsProvider(val base: URL, val logger: Logger) : Mappings
         }
     }
 
+    /**
+     * Hashes the raw list and every SRG file listed on it, the mappings are not parsed
+     */
+    override fun fingerprint(minecraftVersion: String, bukkitVersion: String, packageVersion: String): String {
+        val dir = URL(URL(base, "forge/"), "$minecraftVersion/")
+        val list = URL(dir, "list.txt")
+        val subdirs = list.openStream().use { MappingsLexer(it.reader()).lines() }
+        return fingerprint("srg/1", listOf(list) + subdirs.map { URL(dir, "$it/notch-srg.srg") })
+    }
+
     private fun load(dir: URL): List<Mappings> {
-        return URL(dir, "list.txt").openStream().use { it.reader().buffered().lines().filterComments().toList() }.map { subdir ->
+        return URL(dir, "list.txt").openStream().use { MappingsLexer(it.reader()).lines() }.map { subdir ->
             URL(dir, "$subdir/notch-srg.srg").openStream().use {
                 logger.info { "Reading SRG mappings: $subdir/notch-srg.srg" }
                 parse(it.reader())
@@ -52,51 +60,38 @@ class Srg2NotchURLMappingsProvider(val base: URL, val logger: Logger) : Mappings
         }
     }
 
+    /**
+     * Builds the mappings in a single pass over the lines, the identifiers are created directly from the lexer fields
+     */
     private fun parse(reader: Reader): Mappings {
-        val groups = reader.buffered().lines().filterComments().asSequence()
-                .map { it.split(' ', limit = 5) }
-                .groupBy { it.first() }
-
         val mappings = Mappings()
-        val packages = mutableMapOf<String, PackageToken>()
+        val lexer = MappingsLexer(reader)
 
-        fun String.packageToken(): PackageToken {
-            val noDot = if(this == ".") "" else this
-            return packages.computeIfAbsent(noDot) { _ -> PackageIdentifier(noDot) }
-        }
+        fun packageToken(field: Int): PackageToken = PackageIdentifier(if(lexer.matches(field, ".")) "" else lexer.string(field))
 
-        groups["PK:"]!!.associate {
-            it[1].packageToken() to it[2].packageToken()
-        }.let {
-            logger.info { "Loaded ${it.size} fallback package mappings" }
-            mappings.packages += it
-        }
+        fun classToken(field: Int, end: Int): ClassToken = ClassIdentifier(lexer.string(field, 0, end))
 
-        val classes = mutableMapOf<String, ClassIdentifier>()
-        fun String.classToken(): ClassToken = classes.computeIfAbsent(this) { _ -> ClassIdentifier(this) }
-        groups["CL:"]!!.associate {
-            it[1].classToken() to it[2].classToken()
-        }.let {
-            logger.info { "Loaded ${it.size} class name mappings" }
-            mappings.classes += it
-        }
+        fun classToken(field: Int) = classToken(field, lexer.length(field))
 
-        fun String.fieldToken(): FieldToken = substringBeforeLast('/').classToken() to FieldIdentifier(substringAfterLast('/'))
-        groups["FD:"]!!.associate {
-            it[1].fieldToken() to it[2].fieldToken()
-        }.let {
-            logger.info { "Loaded ${it.size} field name mappings" }
-            mappings.fields += it
-        }
+        fun ownerToken(field: Int) = lexer.lastIndexOf(field, '/').let { if(it < 0) classToken(field) else classToken(field, it) }
 
-        infix fun String.method(desc: String): MethodToken = substringBeforeLast('/').classToken() to MethodIdentifier(substringAfterLast('/'), desc)
-        groups["MD:"]!!.associate {
-            (it[1] method it[2]) to (it[3] method it[4])
-        }.let {
-            logger.info { "Loaded ${it.size} method name mappings" }
-            mappings.methods += it
+        fun memberName(field: Int) = lexer.string(field, lexer.lastIndexOf(field, '/') + 1)
+
+        while(lexer.next()) {
+            when {
+                lexer.matches(0, "PK:") -> mappings.packages[packageToken(1)] = packageToken(2)
+                lexer.matches(0, "CL:") -> mappings.classes[classToken(1)] = classToken(2)
+                lexer.matches(0, "FD:") -> mappings.fields[ownerToken(1) to FieldIdentifier(memberName(1))] =
+                        ownerToken(2) to FieldIdentifier(memberName(2))
+                lexer.matches(0, "MD:") -> mappings.methods[ownerToken(1) to MethodIdentifier(memberName(1), lexer.string(2))] =
+                        ownerToken(3) to MethodIdentifier(memberName(3), lexer.string(4))
+            }
         }
 
+        logger.info { "Loaded ${mappings.packages.size} fallback package mappings" }
+        logger.info { "Loaded ${mappings.classes.size} class name mappings" }
+        logger.info { "Loaded ${mappings.fields.size} field name mappings" }
+        logger.info { "Loaded ${mappings.methods.size} method name mappings" }
         return mappings
     }
 }
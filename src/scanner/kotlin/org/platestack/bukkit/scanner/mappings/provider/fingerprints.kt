@@ -0,0 +1,46 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings.provider
+
+import java.math.BigInteger
+import java.net.URL
+import java.security.MessageDigest
+
+/**
+ * Computes a SHA-1 hash of the raw bytes of the sources, without parsing them.
+ *
+ * The format is hashed together, it must be changed whenever the parser starts to produce different mappings from
+ * the same sources.
+ */
+internal fun fingerprint(format: String, sources: List<URL>): String {
+    val digest = MessageDigest.getInstance("SHA-1")
+    digest.update(format.toByteArray(Charsets.UTF_8))
+    val buffer = ByteArray(8192)
+    sources.forEach { source ->
+        digest.update(0)
+        digest.update(source.toString().toByteArray(Charsets.UTF_8))
+        digest.update(0)
+        source.openStream().use { input ->
+            while(true) {
+                val read = input.read(buffer)
+                if(read < 0) break
+                digest.update(buffer, 0, read)
+            }
+        }
+    }
+    return "$format:" + BigInteger(1, digest.digest()).toString(16)
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import java.io.Closeable
+import java.io.File
+import java.math.BigInteger
+import java.security.MessageDigest
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Prebuilt structures of the classes which are never remapped but are often the parents of the remapped classes,
+ * like the JDK and the Bukkit API.
+ *
+ * The structures are built once by a full cold scan and stored as [RemapEnvironmentSnapshot]s which are keyed by the
+ * version of the runtime or of the API jar. Later boots load the snapshots into base environments which are used as
+ * parents of the other environments, so the scanners find these classes already registered and never read them again.
+ *
+ * The base snapshots reuse the [RemapEnvironmentSnapshot.Key], the name of the source is stored in place of the
+ * Minecraft version, [CONTENT_VERSION] is part of the inputs hash and the key of the parent is stored as the base.
+ */
+object BaseEnvironments {
+    /**
+     * Must be incremented every time the selection of the prebuilt classes changes
+     */
+    const val CONTENT_VERSION = 1
+
+    /**
+     * The packages of the runtime which are prebuilt, the classes which they refer to are included as well
+     */
+    val JDK_PACKAGES = listOf("java/", "javax/")
+
+    private fun hash(vararg parts: Any?): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        parts.forEach { digest.update("$it\u0000".toByteArray(Charsets.UTF_8)) }
+        return BigInteger(1, digest.digest()).toString(16)
+    }
+
+    /**
+     * The key of the structures of the running Java runtime
+     */
+    fun jdkKey(): RemapEnvironmentSnapshot.Key {
+        val version = System.getProperty("java.runtime.version")
+        return RemapEnvironmentSnapshot.Key(
+                "jdk", version, System.getProperty("java.vendor"),
+                hash(CONTENT_VERSION, version, System.getProperty("java.home"), JDK_PACKAGES)
+        )
+    }
+
+    /**
+     * The key of the structures of an API jar
+     * @param parent The key of the environment which provides the parents of the jar classes
+     */
+    fun jarKey(jar: File, version: String, parent: RemapEnvironmentSnapshot.Key?) = RemapEnvironmentSnapshot.Key(
+            jar.nameWithoutExtension, version, "",
+            hash(CONTENT_VERSION, version, jar.absolutePath, jar.length(), jar.lastModified()),
+            parent?.fingerprint ?: "none"
+    )
+
+    /**
+     * Loads the structures of the running Java runtime from the snapshot file, building and saving them when the
+     * snapshot is missing or was built by a different runtime.
+     *
+     * The classes are read from the `jrt:/` file system on Java 9+ and from the `rt.jar` on older runtimes.
+     */
+    fun jdk(file: File, logger: Logger, parallelism: Int = 1): RemapEnvironment {
+        val home = System.getProperty("java.home")
+        return load(file, jdkKey(), null, logger) {
+            val loader = if(JrtResourceLoader.isAvailable) {
+                JrtResourceLoader().let { it to it.names }
+            }
+            else {
+                val runtime = File(home, "lib/rt.jar")
+                JarResourceLoader(listOf(runtime), ClassResourceLoader(ClassLoader.getSystemClassLoader())).let {
+                    it to it.jars.first().entries.keys
+                }
+            }
+
+            try {
+                val classes = loader.second.filter { name -> JDK_PACKAGES.any { name.startsWith(it) } }
+                build(loader.first, classes, null, logger, parallelism)
+            }
+            finally {
+                (loader.first as? Closeable)?.close()
+            }
+        }
+    }
+
+    /**
+     * Loads the structures of the classes of an API jar from the snapshot file, building and saving them when the
+     * snapshot is missing or was built from a different version or jar file.
+     *
+     * @param filter Selects the classes of the jar which are prebuilt, by their resource names
+     * @param parent The environment which provides the parents of the jar classes, usually the [jdk] environment
+     * @param parentKey The key of the [parent] environment
+     * @param fallback Provides the classes which are referred by the jar but are not in it nor in the parent
+     */
+    fun jar(
+            file: File, jar: File, version: String, filter: (String) -> Boolean,
+            parent: RemapEnvironment?, parentKey: RemapEnvironmentSnapshot.Key?, fallback: ResourceLoader?,
+            logger: Logger, parallelism: Int = 1
+    ): RemapEnvironment {
+        return load(file, jarKey(jar, version, parentKey), parent, logger) {
+            JarResourceLoader(listOf(jar), fallback).use { loader ->
+                build(loader, loader.jars.first().entries.keys.filter(filter), parent, logger, parallelism)
+            }
+        }
+    }
+
+    private inline fun load(
+            file: File, key: RemapEnvironmentSnapshot.Key, parent: RemapEnvironment?, logger: Logger,
+            build: () -> RemapEnvironment
+    ): RemapEnvironment {
+        val snapshot = try {
+            RemapEnvironmentSnapshot.read(file, key, parent)
+        }
+        catch (e: Exception) {
+            logger.log(Level.WARNING, "Failed to load the base snapshot $file, it will be rebuilt", e)
+            null
+        }
+
+        if(snapshot != null) {
+            return RemapEnvironment(parent, true).also { it.putAll(snapshot) }
+        }
+
+        logger.info("Building the ${key.minecraftVersion} ${key.bukkitVersion} structures, this happens only once per version")
+        val built = build()
+        try {
+            RemapEnvironmentSnapshot.write(built, key, file)
+        }
+        catch (e: Exception) {
+            logger.log(Level.WARNING, "Failed to save the base snapshot $file", e)
+        }
+
+        return built
+    }
+
+    /**
+     * Fully scans the given classes, and all classes which they refer to, into a new base environment.
+     *
+     * Classes which can't be scanned are skipped, the scanners still handle them if they are ever needed.
+     *
+     * @param classes The resource names of the classes, other resources are ignored
+     */
+    fun build(
+            loader: ResourceLoader, classes: Collection<String>, parent: RemapEnvironment?, logger: Logger, parallelism: Int = 1
+    ): RemapEnvironment {
+        val environment = RemapEnvironment(parent, true)
+        val scanner = ResourceLoaderScanner(loader)
+        val ids = classes.asSequence()
+                .filter { it.endsWith(".class") && !it.endsWith("module-info.class") && !it.endsWith("package-info.class") }
+                .map { ClassIdentifier(it.removeSuffix(".class")) }
+                .toList()
+
+        scanner.prefetch(ids, parallelism)
+
+        var failures = 0
+        ids.forEach {
+            try {
+                scanner.provideFull(environment, it)
+            }
+            catch (e: Exception) {
+                failures++
+                logger.log(Level.FINE, "Skipping the base class $it", e)
+            }
+        }
+
+        if(failures > 0)
+            logger.warning("$failures classes could not be scanned and were left out of the base structures")
+
+        return environment
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import org.platestack.bukkit.scanner.structure.FieldIdentifier
+import org.platestack.bukkit.scanner.structure.MethodIdentifier
+import java.lang.reflect.Modifier
+
+/**
+ * Reads class summaries directly from the class file format.
+ *
+ * Only the constant pool entries which are referenced by the header and by the member tables are decoded, the
+ * attributes are skipped by their length and the parsing stops after the method table, so the code, the stack map
+ * frames and the debug information are never touched.
+ *
+ * Unlike ASM 5 this parser doesn't reject class files from newer Java versions, their header format is the same.
+ */
+internal class ClassHeaderParser private constructor(private val bytes: ByteArray) {
+    companion object {
+        private const val MAGIC = 0xCAFEBABE.toInt()
+        private const val ACC_SYNTHETIC = 0x1000
+
+        fun parse(classId: ClassIdentifier, bytes: ByteArray): ClassSummary {
+            try {
+                return ClassHeaderParser(bytes).parse(classId)
+            }
+            catch (e: IndexOutOfBoundsException) {
+                throw IllegalArgumentException("Truncated class file for ${classId.fullName}", e)
+            }
+        }
+    }
+
+    private var position = 0
+    private lateinit var offsets: IntArray
+    private lateinit var strings: Array<String?>
+
+    private fun u1() = bytes[position++].toInt() and 0xFF
+    private fun u2() = (u1() shl 8) or u1()
+    private fun u4() = (u2() shl 16) or u2()
+
+    private fun readConstantPool() {
+        val count = u2()
+        offsets = IntArray(count)
+        strings = arrayOfNulls(count)
+        var index = 1
+        while(index < count) {
+            val tag = u1()
+            offsets[index] = position
+            position += when(tag) {
+                1 -> 2 + ((bytes[position].toInt() and 0xFF) shl 8 or (bytes[position + 1].toInt() and 0xFF))
+                3, 4, 9, 10, 11, 12, 17, 18 -> 4
+                5, 6 -> { index++; 8 }
+                7, 8, 16, 19, 20 -> 2
+                15 -> 3
+                else -> throw IllegalArgumentException("Unknown constant pool tag $tag at index $index")
+            }
+            index++
+        }
+    }
+
+    /**
+     * Decodes a modified UTF-8 constant
+     */
+    private fun utf8(index: Int): String {
+        strings[index]?.let { return it }
+
+        var current = offsets[index]
+        val length = (bytes[current].toInt() and 0xFF) shl 8 or (bytes[current + 1].toInt() and 0xFF)
+        current += 2
+        val end = current + length
+        val chars = CharArray(length)
+        var size = 0
+        while(current < end) {
+            val c = bytes[current++].toInt() and 0xFF
+            chars[size++] = when(c shr 4) {
+                in 0..7 -> c.toChar()
+                12, 13 -> ((c and 0x1F shl 6) or (bytes[current++].toInt() and 0x3F)).toChar()
+                else -> ((c and 0x0F shl 12) or (bytes[current++].toInt() and 0x3F shl 6) or (bytes[current++].toInt() and 0x3F)).toChar()
+            }
+        }
+
+        return String(chars, 0, size).also { strings[index] = it }
+    }
+
+    private fun className(index: Int) = utf8((bytes[offsets[index]].toInt() and 0xFF) shl 8 or (bytes[offsets[index] + 1].toInt() and 0xFF))
+
+    /**
+     * Skips the attributes of a class or member
+     * @return [ACC_SYNTHETIC] when a `Synthetic` attribute is found, like ASM does
+     */
+    private fun skipAttributes(): Int {
+        var flags = 0
+        repeat(u2()) {
+            if(utf8(u2()) == "Synthetic")
+                flags = ACC_SYNTHETIC
+            val length = u4()
+            position += length
+        }
+        return flags
+    }
+
+    private inline fun readMembers(read: (access: Int, name: String, descriptor: String) -> Unit) {
+        repeat(u2()) {
+            val access = u2()
+            val name = utf8(u2())
+            val descriptor = utf8(u2())
+            read(access or skipAttributes(), name, descriptor)
+        }
+    }
+
+    private fun parse(classId: ClassIdentifier): ClassSummary {
+        if(u4() != MAGIC)
+            throw IllegalArgumentException("Not a class file: ${classId.fullName}")
+
+        position += 4
+        readConstantPool()
+
+        val access = u2()
+        val name = className(u2())
+        if(name != classId.fullName)
+            throw ColdScanner.DifferentClassException(expected = classId.fullName, found = name)
+
+        val superIndex = u2()
+        val superName = if(superIndex == 0) null else className(superIndex)
+        val superclass = if(Modifier.isInterface(access) && superName == "java/lang/Object") null else superName?.let { ClassIdentifier(it) }
+
+        val interfaceCount = u2()
+        val interfaces: Set<ClassIdentifier> =
+                if(interfaceCount == 0) emptySet()
+                else (1..interfaceCount).mapTo(LinkedHashSet(interfaceCount * 2)) { ClassIdentifier(className(u2())) }
+
+        val fields = LinkedHashMap<FieldIdentifier, ClassSummary.Field>()
+        readMembers { fieldAccess, fieldName, descriptor ->
+            val id = FieldIdentifier(fieldName)
+            fields.putIfAbsent(id, ClassSummary.Field(id, descriptor, fieldAccess))
+        }
+
+        val methods = LinkedHashMap<MethodIdentifier, ClassSummary.Method>()
+        readMembers { methodAccess, methodName, descriptor ->
+            val id = MethodIdentifier(methodName, descriptor)
+            methods[id] = ClassSummary.Method(id, methodAccess)
+        }
+
+        return ClassSummary(classId, access, superclass, interfaces, fields, methods)
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.FieldVisitor
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import org.platestack.bukkit.scanner.structure.FieldIdentifier
+import org.platestack.bukkit.scanner.structure.MethodIdentifier
+import java.lang.reflect.Modifier
+
+/**
+ * The hierarchy and the declared members of a class file.
+ *
+ * Summaries are immutable and are read by a single pass which skips the code, so every structure scan of a class can
+ * be answered from the same summary without reading the class file again.
+ *
+ * @property superclass The super class, `null` for `java/lang/Object` and for interfaces
+ * @property fields The declared fields, in declaration order
+ * @property methods The declared methods, including the constructors, in declaration order
+ */
+class ClassSummary(
+        val classId: ClassIdentifier,
+        val access: Int,
+        val superclass: ClassIdentifier?,
+        val interfaces: Set<ClassIdentifier>,
+        val fields: Map<FieldIdentifier, Field>,
+        val methods: Map<MethodIdentifier, Method>
+) {
+    class Field(val id: FieldIdentifier, val descriptor: String, val access: Int)
+    class Method(val id: MethodIdentifier, val access: Int) {
+        val isInitializer get() = id.name == "<init>" || id.name == "<clinit>"
+    }
+
+    val isInterface get() = Modifier.isInterface(access)
+
+    /**
+     * The ways which a summary can be read from the bytes of a class file
+     */
+    enum class Parser {
+        /**
+         * Reads the summary with an ASM pass which skips the code, debug information and frames. This is the default parser.
+         */
+        ASM {
+            override fun parse(classId: ClassIdentifier, bytes: ByteArray): ClassSummary {
+                val visitor = SummaryVisitor(classId)
+                ClassReader(bytes).accept(visitor, ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+                return visitor.summary()
+            }
+        },
+
+        /**
+         * Reads only the class file header and the member tables, see [ClassHeaderParser].
+         *
+         * It's faster than [ASM] but must be enabled explicitly with `remap.scanner.parser: header`.
+         */
+        HEADER {
+            override fun parse(classId: ClassIdentifier, bytes: ByteArray) = ClassHeaderParser.parse(classId, bytes)
+        };
+
+        /**
+         * Reads the summary of a class file
+         * @throws ColdScanner.DifferentClassException If the class file doesn't declare the expected class
+         */
+        abstract fun parse(classId: ClassIdentifier, bytes: ByteArray): ClassSummary
+    }
+
+    private class SummaryVisitor(val classId: ClassIdentifier) : ClassVisitor(Opcodes.ASM5) {
+        var access = 0
+        var superclass: ClassIdentifier? = null
+        var interfaces: Set<ClassIdentifier> = emptySet()
+        val fields = LinkedHashMap<FieldIdentifier, Field>()
+        val methods = LinkedHashMap<MethodIdentifier, Method>()
+
+        override fun visit(version: Int, access: Int, name: String, signature: String?, superName: String?, interfaces: Array<out String>?) {
+            if(name != classId.fullName)
+                throw ColdScanner.DifferentClassException(expected = classId.fullName, found = name)
+
+            // Removes the ASM pseudo flags, like ACC_DEPRECATED, which are not part of the class file access flags
+            this.access = access and 0xFFFF
+            superclass = if(Modifier.isInterface(access) && superName == "java/lang/Object") null else superName?.let { ClassIdentifier(it) }
+            this.interfaces = interfaces?.mapTo(LinkedHashSet()) { ClassIdentifier(it) } ?: emptySet<ClassIdentifier>()
+        }
+
+        override fun visitField(access: Int, name: String, desc: String, signature: String?, value: Any?): FieldVisitor? {
+            val id = FieldIdentifier(name)
+            fields.putIfAbsent(id, Field(id, desc, access and 0xFFFF))
+            return null
+        }
+
+        override fun visitMethod(access: Int, name: String, desc: String, signature: String?, exceptions: Array<out String>?): MethodVisitor? {
+            val id = MethodIdentifier(name, desc)
+            methods[id] = Method(id, access and 0xFFFF)
+            return null
+        }
+
+        fun summary() = ClassSummary(classId, access, superclass, interfaces, fields, methods)
+    }
+}
+
+/**
+ * A bounded cache of class summaries, the least recently used summaries are evicted when the cache is full
+ */
+class ClassSummaryCache(val maxSize: Int = 8192) {
+    private val summaries = object : LinkedHashMap<ClassIdentifier, ClassSummary>(256, 0.75F, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ClassIdentifier, ClassSummary>?) = size > maxSize
+    }
+
+    val size get() = synchronized(summaries) { summaries.size }
+
+    operator fun contains(classId: ClassIdentifier) = synchronized(summaries) { summaries.containsKey(classId) }
+
+    /**
+     * Gets the cached summary of a class or reads it with the given function.
+     *
+     * The summary is read outside of the lock, concurrent misses of the same class may read it more than once but
+     * only the first summary is kept. Classes which couldn't be read are not cached.
+     */
+    fun getOrRead(classId: ClassIdentifier, read: (ClassIdentifier) -> ClassSummary?): ClassSummary? {
+        synchronized(summaries) { summaries[classId] }?.let { return it }
+        val summary = read(classId) ?: return null
+        return synchronized(summaries) { summaries.putIfAbsent(classId, summary) } ?: summary
+    }
+
+    fun clear() = synchronized(summaries) { summaries.clear() }
+}
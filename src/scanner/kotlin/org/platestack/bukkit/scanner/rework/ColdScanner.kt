@@ -16,25 +16,48 @@
 
 package org.platestack.bukkit.scanner.rework
 
-import org.objectweb.asm.*
 import org.platestack.bukkit.scanner.structure.*
 import org.platestack.bukkit.scanner.structure.AccessLevel.*
-import org.platestack.util.tryIgnoring
 import java.lang.reflect.Modifier
 
+/**
+ * Scanner which reads the structures from the class files, without loading the classes.
+ *
+ * All scans of a class are answered from its [ClassSummary], so the class file is read once per summary.
+ */
 interface ColdScanner : ClassScanner {
-    fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier, reader: ClassReader): ClassStructure {
-        val fieldsVisitor = FieldStructureVisitor(this, environment, classId, null, null)
-        val methodsVisitor = MethodStructureVisitor(this, environment, classId, null, fieldsVisitor)
-        val structure = scan(environment, classId, true, reader, methodsVisitor)
+    /**
+     * Provides the summary of a class file or return null when the class file is not available
+     */
+    fun summarize(classId: ClassIdentifier): ClassSummary?
+
+    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean): ClassStructure? {
+        return summarize(classId)?.let { scan(environment, classId, fullParents, it) }
+    }
+
+    override fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier): ClassStructure? {
+        return summarize(classId)?.let { fullScan(environment, classId, it) }
+    }
+
+    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier): FieldStructure? {
+        return summarize(classId)?.let { scan(environment, classId, fieldId, it) }
+    }
+
+    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure? {
+        return summarize(classId)?.let { scan(environment, classId, methodId, it) }
+    }
+
+    fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier, summary: ClassSummary): ClassStructure {
+        val structure = scan(environment, classId, true, summary)
 
         structure.isFull = true
 
-        fieldsVisitor.fields.forEach {
-            structure.fields[it.field.from] = it
+        summary.fields.values.forEach {
+            structure.fields[it.id] = createField(this, environment, classId, it)
         }
 
-        buildMethodStructures(this, environment, classId, methodsVisitor.superclass, requireNotNull(methodsVisitor.interfaceIds), methodsVisitor.methods).forEach {
+        val methods = summary.methods.values.filterNot { it.isInitializer }
+        buildMethodStructures(this, environment, classId, summary.superclass, summary.interfaces, methods).forEach {
             structure.methods[it.method.from] = it
         }
 
@@ -46,75 +69,12 @@ interface ColdScanner : ClassScanner {
         return structure
     }
 
-    data class MethodStructureData(val methodId: MethodIdentifier, val access: Int)
-
-    class MethodStructureVisitor(
-            val scanner: ClassScanner,
-            val environment: RemapEnvironment,
-            classId: ClassIdentifier,
-            val methodId: MethodIdentifier?,
-            delegate: ClassVisitor?,
-            val constructors: Boolean = false
-    ) : ClassHierarchyVisitor(classId, delegate, false) {
-        var methods: MutableList<ColdScanner.MethodStructureData> = if(methodId == null) mutableListOf() else ArrayList(1)
-
-        override fun visitMethod(access: Int, name: String, desc: String, signature: String?, exceptions: Array<out String>?): MethodVisitor? {
-            if((constructors || (name != "<init>" && name != "<clinit>")) && (methodId == null || (name == methodId.name && desc == methodId.descriptor))) {
-                val methodId = methodId ?: MethodIdentifier(name, desc)
-
-                val method = ColdScanner.MethodStructureData(methodId, access)
-                methods.add(method)
-                if(this.methodId != null && cv == null)
-                    throw Abort
-            }
-
-            return cv?.safeCall { visitMethod(access, name, desc, signature, exceptions) }
+    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier, summary: ClassSummary): FieldStructure? {
+        summary.fields[fieldId]?.let {
+            return createField(this, environment, classId, it)
         }
-    }
 
-    class FieldStructureVisitor(
-            val scanner: ClassScanner,
-            val environment: RemapEnvironment,
-            classId: ClassIdentifier,
-            val fieldId: FieldIdentifier?,
-            delegate: ClassVisitor?
-    ) : ClassHierarchyVisitor(classId, delegate, false) {
-        var fields: MutableList<FieldStructure> = if(fieldId == null) mutableListOf() else ArrayList(1)
-
-        override fun visitField(access: Int, name: String, desc: String, signature: String?, value: Any?): FieldVisitor? {
-            if(fieldId == null || name == fieldId.name) {
-                val field = FieldStructure(
-                        (fieldId ?: FieldIdentifier(name)).toChange(),
-                        checkNotNull(scanner.provide(environment, checkNotNull(classId))).`class`,
-                        AccessLevel[access],
-                        Modifier.isStatic(access),
-                        ParameterDescriptor(desc) {
-                            checkNotNull(scanner.provide(environment, it)).`class`
-                        }
-                )
-                fields.add(field)
-                if(fieldId != null && cv == null)
-                    throw Abort
-            }
-
-            return cv?.safeCall { visitField(access, name, desc, signature, value) }
-        }
-    }
-
-    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier, classReader: ClassReader, delegate: ClassVisitor? = null): FieldStructure? {
-        val visitor = FieldStructureVisitor(this, environment, classId, fieldId, null)
-
-        try {
-            classReader.accept(visitor, 0)
-        }
-        catch (_: Abort) {
-            return visitor.fields.first()
-        }
-
-        if(visitor.fields.isNotEmpty())
-            return visitor.fields.first()
-
-        val superId = visitor.superclass ?: return null
+        val superId = summary.superclass ?: return null
 
         val superField = provide(environment, superId, fieldId) ?: return null
         if(superField.static == true)
@@ -129,24 +89,12 @@ interface ColdScanner : ClassScanner {
         }
     }
 
-    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier, classReader: ClassReader): MethodStructure? {
-        val visitor = MethodStructureVisitor(this, environment, classId, methodId, null)
-
-        fun getMethod() =
-                buildMethodStructures(this, environment, classId, visitor.superclass, checkNotNull(visitor.interfaceIds), visitor.methods)
-                .first()
-
-        try {
-            classReader.accept(visitor, 0)
-        }
-        catch (_: Abort) {
-            return getMethod()
+    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier, summary: ClassSummary): MethodStructure? {
+        summary.methods[methodId]?.takeUnless { it.isInitializer }?.let {
+            return buildMethodStructures(this, environment, classId, summary.superclass, summary.interfaces, listOf(it)).first()
         }
 
-        if(visitor.methods.isNotEmpty())
-            return getMethod()
-
-        val superId = visitor.superclass ?: return null
+        val superId = summary.superclass ?: return null
 
         val superMethod = provide(environment, superId, methodId) ?: return null
         if(superMethod.isStatic == true)
@@ -161,54 +109,27 @@ interface ColdScanner : ClassScanner {
         }
     }
 
-    open class ClassHierarchyVisitor(val classId: ClassIdentifier, delegate: ClassVisitor? = null, val abort: Boolean = true) : ClassVisitor(Opcodes.ASM5, delegate) {
-        var superclass: ClassIdentifier? = null
-        var interfaceIds: Set<ClassIdentifier>? = null
-        var isInterface = false
-
-        override fun visit(version: Int, access: Int, name: String, signature: String?, superName: String?, interfaces: Array<out String>?) {
-            if(name != classId.fullName)
-                throw DifferentClassException(expected = classId.fullName, found = name)
-
-            isInterface = Modifier.isInterface(access)
-            superclass = if(isInterface && superName == "java/lang/Object") null else superName?.let { ClassIdentifier(superName) }
-            interfaceIds = interfaces?.asSequence()?.map { ClassIdentifier(it) }?.toSet() ?: emptySet()
-            if(abort && cv == null)
-                throw Abort
-
-            cv?.safeCall { visit(version, access, name, signature, superName, interfaces) }
-        }
-    }
-
-    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean = false, reader: ClassReader, delegate: ClassVisitor? = null) : ClassStructure {
-        val visitor = ClassHierarchyVisitor(classId, delegate)
-
-        tryIgnoring(Abort::class) {
-            reader.accept(visitor, 0)
-        }
-
+    fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean = false, summary: ClassSummary) : ClassStructure {
         return ClassScanner.createStructure(
                 this, environment, classId, fullParents,
-                visitor.superclass, checkNotNull(visitor.interfaceIds), visitor.isInterface
+                summary.superclass, summary.interfaces, summary.isInterface
         )
     }
 
     class DifferentClassException(expected: String, found: String): ClassNotFoundException("Expected: $expected, Found: $found")
 
-    object Abort: Throwable(null, null, false, false)
-
     companion object {
-        inline fun <T> ClassVisitor.safeCall(function: ClassVisitor.()->T): T {
-            try {
-                return function()
-            }
-            catch (_: Abort) {
-                throw InterruptedException("Caught Abort from delegated visitor")
-            }
-        }
+        fun createField(scanner: ClassScanner, environment: RemapEnvironment, classId: ClassIdentifier, field: ClassSummary.Field) =
+                FieldStructure(
+                        field.id.toChange(),
+                        checkNotNull(scanner.provide(environment, classId)).`class`,
+                        AccessLevel[field.access],
+                        Modifier.isStatic(field.access),
+                        ParameterDescriptor(field.descriptor, environment::typeChange)
+                )
 
         fun findMethodOwner(scanner: ClassScanner, environment: RemapEnvironment, classId: ClassIdentifier, superclass: ClassIdentifier?, interfaceIds: Set<ClassIdentifier>, methodId: MethodIdentifier): MethodStructure? {
-            val parents = (checkNotNull(interfaceIds).asSequence() + sequenceOf(superclass)).filterNotNull()
+            val parents = (interfaceIds.asSequence() + sequenceOf(superclass)).filterNotNull()
             val parentMethod = parents
                     .map {
                         scanner.provide(environment, it, methodId) ?: scanner.provide(environment, classId)?.find(methodId)
@@ -231,11 +152,11 @@ interface ColdScanner : ClassScanner {
                 classId: ClassIdentifier,
                 superclass: ClassIdentifier?,
                 interfaceIds: Set<ClassIdentifier>,
-                methods: List<MethodStructureData>
+                methods: List<ClassSummary.Method>
         ) = methods.asSequence().map {
-            val parentMethod = findMethodOwner(scanner, environment, classId, superclass, interfaceIds, it.methodId)
+            val parentMethod = findMethodOwner(scanner, environment, classId, superclass, interfaceIds, it.id)
             MethodStructure(
-                    parentMethod?.method ?: it.methodId.toChange { checkNotNull(scanner.provide(environment, it)).`class` },
+                    parentMethod?.method ?: it.id.toChange(environment::typeChange),
                     parentMethod?.owner ?: checkNotNull(scanner.provide(environment, checkNotNull(classId))).`class`,
                     AccessLevel[it.access],
                     Modifier.isStatic(it.access)
@@ -16,36 +16,110 @@
 
 package org.platestack.bukkit.scanner.rework
 
-import org.objectweb.asm.Type
-import org.objectweb.asm.Type.*
+import org.objectweb.asm.Type.getDescriptor
+import org.objectweb.asm.Type.getMethodDescriptor
 import org.platestack.bukkit.scanner.structure.*
-import org.platestack.util.tryIgnoring
-import java.lang.reflect.Field
-import java.lang.reflect.Method
 import java.lang.reflect.Modifier.*
 
+/**
+ * Scanner which reads the structures from the classes loaded by a class loader.
+ *
+ * Classes are loaded without being initialized and their declared members are indexed once per class, by name and by
+ * descriptor, so member lookups match the descriptors directly instead of resolving them to classes and never throw
+ * to search the hierarchy.
+ *
+ * The member tables are read from the class files through a [ClassSummary], the loaded classes are used only for their
+ * identity, so the types referenced by the members are never loaded. Classes without a class file, like the generated
+ * ones, fall back to reflection.
+ */
 open class HotScanner(val classLoader: ClassLoader) : ClassScanner {
     protected val ClassIdentifier.hotName get() = fullName.replace('/', '.')
     protected val Class<*>.coldName get() = name.replace('.','/')
 
+    /**
+     * A declared member, the descriptor is the field type or the method descriptor
+     */
+    private class Member(val name: String, val descriptor: String, val access: Int)
+
+    /**
+     * The declared members of a class, the methods are indexed by their name followed by their descriptor
+     */
+    private class Members(val fields: Map<String, Member>, val methods: Map<String, Member>)
+
+    private val members = object : ClassValue<Members?>() {
+        override fun computeValue(type: Class<*>): Members? {
+            val summary = try {
+                summarizeLoaded(type)
+            }
+            catch (ignored: Exception) {
+                null
+            }
+
+            return if(summary != null) Members(
+                    summary.fields.values.associate { it.id.name to Member(it.id.name, it.descriptor, it.access) },
+                    summary.methods.values.asSequence().filterNot { it.isInitializer }
+                            .associate { it.id.name + it.id.descriptor to Member(it.id.name, it.id.descriptor, it.access) }
+            )
+            else reflect(type)
+        }
+    }
+
+    /**
+     * Reads the declared members of a class which doesn't have a class file
+     * @return The members or null if they reference classes which are not available
+     */
+    private fun reflect(type: Class<*>) = try {
+        Members(
+                type.declaredFields.associate { it.name to Member(it.name, getDescriptor(it.type), it.modifiers) },
+                type.declaredMethods.associate {
+                    val descriptor = getMethodDescriptor(it)
+                    it.name + descriptor to Member(it.name, descriptor, it.modifiers)
+                }
+        )
+    }
+    catch (ignored: LinkageError) {
+        null
+    }
+
+    /**
+     * Reads the summary of a loaded class from its class file
+     * @return The summary or null if the class file is not available
+     */
+    protected open fun summarizeLoaded(type: Class<*>): ClassSummary? {
+        val classId = ClassIdentifier(type.coldName)
+        val loader = type.classLoader ?: ClassLoader.getSystemClassLoader() ?: return null
+        return loader.getResourceAsStream(classId.fullName + ".class")?.use { ClassSummary.Parser.ASM.parse(classId, it.readBytes()) }
+    }
+
+    private fun Class<*>.members() = members[this]
+
+    /**
+     * Loads a class without initializing it
+     * @return The class or null if it's not available
+     */
+    protected fun load(classId: ClassIdentifier): Class<*>? = try {
+        Class.forName(classId.hotName, false, classLoader)
+    }
+    catch (ignored: ClassNotFoundException) {
+        null
+    }
+    catch (ignored: LinkageError) {
+        null
+    }
+
     override fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier): ClassStructure? {
+        val members = load(classId)?.members() ?: return null
         val structure = scan(environment, classId, true) ?: return null
-        val `class` = classLoader.loadClass(classId.hotName)
         ClassScanner.fillStructure(
                 this, environment, structure,
-                `class`.declaredFields.map { FieldIdentifier(it.name) },
-                `class`.declaredMethods.map { MethodIdentifier(it.name, getMethodDescriptor(it)) }
+                members.fields.keys.map { FieldIdentifier(it) },
+                members.methods.values.map { MethodIdentifier(it.name, it.descriptor) }
         )
         return structure
     }
 
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean): ClassStructure? {
-        val `class` = try {
-            classLoader.loadClass(classId.hotName)
-        }
-        catch (ignored: ClassNotFoundException) {
-            return null
-        }
+        val `class` = load(classId) ?: return null
 
         return ClassScanner.createStructure(
                 this, environment, classId, fullParents,
@@ -55,48 +129,32 @@ open class HotScanner(val classLoader: ClassLoader) : ClassScanner {
         )
     }
 
-    private fun findVisibleMethod(from: Class<*>, current: Class<*>, methodName: String, parameters: Array<Class<*>>): Method? {
-        val declared = tryIgnoring(NoSuchMethodException::class) { current.getDeclaredMethod(methodName, *parameters) }
-                ?: current.superclass?.let { return findVisibleMethod(from, it, methodName, parameters) }
-                ?: return null
-
-        return declared.modifiers.let { mod->
-            declared.takeIf {
-                when {
-                    isStatic(mod) || isPrivate(mod) -> from == current
-                    isPublic(mod) -> true // Not needed here but would be needed if this method was public
-                    isProtected(mod) -> true // Assumes that from is an instance of current
-                    else -> from.`package` == current.`package`
-                }
-            }
-        }
+    /**
+     * Checks if a member declared by `current` is visible from `from`, which is `current` or one of its subclasses
+     */
+    private fun isVisible(from: Class<*>, current: Class<*>, mod: Int) = when {
+        isStatic(mod) || isPrivate(mod) -> from == current
+        isPublic(mod) -> true // Not needed here but would be needed if this method was public
+        isProtected(mod) -> true // Assumes that from is an instance of current
+        else -> from.`package` == current.`package`
     }
 
-    private fun Type.toClass(): Class<*> {
-        return when (sort) {
-            VOID -> Void.TYPE
-            BOOLEAN -> java.lang.Boolean.TYPE
-            CHAR -> Character.TYPE
-            BYTE -> java.lang.Byte.TYPE
-            SHORT -> java.lang.Short.TYPE
-            INT -> java.lang.Integer.TYPE
-            FLOAT -> java.lang.Float.TYPE
-            LONG -> java.lang.Long.TYPE
-            DOUBLE -> java.lang.Double.TYPE
-            OBJECT -> classLoader.loadClass(className)
-            ARRAY ->  java.lang.reflect.Array.newInstance(elementType.toClass(), *IntArray(dimensions)).javaClass
-            else -> throw UnsupportedOperationException("Unknown type: $sort - $this")
+    /**
+     * Finds the first method with the given key on the class or on its super classes, like `getDeclaredMethod` did.
+     * Returns null when the method found is not visible from the class.
+     */
+    private fun findVisibleMethod(from: Class<*>, key: String): Member? {
+        var current: Class<*>? = from
+        while(current != null) {
+            val declared = current.members()?.methods?.get(key)
+            if(declared != null)
+                return if(isVisible(from, current, declared.access)) declared else null
+            current = current.superclass
         }
+        return null
     }
 
-    private fun getVisibleMethod(`class`: Class<*>, methodId: MethodIdentifier): Method? {
-        val type = getType(methodId.descriptor)
-        val name = methodId.name
-        val parameters = type.argumentTypes.map { it.toClass() }.toTypedArray()
-        return findVisibleMethod(`class`, `class`, name, parameters)
-    }
-
-    fun Method.findParentMethod(environment: RemapEnvironment, viewer: ClassIdentifier, from: Class<*>, methodId: MethodIdentifier): MethodStructure? {
+    fun findParentMethod(environment: RemapEnvironment, viewer: ClassIdentifier, from: Class<*>, methodId: MethodIdentifier): MethodStructure? {
         val parents = (from.interfaces.asSequence() + sequenceOf(from.superclass)).filterNotNull()
         val parentMethod = parents
                 .map {
@@ -117,63 +175,43 @@ open class HotScanner(val classLoader: ClassLoader) : ClassScanner {
     }
 
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure? {
-        val `class` = try {
-            classLoader.loadClass(classId.hotName)
-        }
-        catch (ignored: ClassNotFoundException) {
-            return null
-        }
-
-        val method = getVisibleMethod(`class`, methodId) ?: return null
-        val parentMethod = method.findParentMethod(environment, classId, `class`, methodId)
+        val `class` = load(classId) ?: return null
+        val method = findVisibleMethod(`class`, methodId.name + methodId.descriptor) ?: return null
+        val parentMethod = findParentMethod(environment, classId, `class`, methodId)
         return MethodStructure(
-                parentMethod?.method ?: methodId.toChange { checkNotNull(provide(environment, it)).`class` },
+                parentMethod?.method ?: methodId.toChange(environment::typeChange),
                 parentMethod?.owner ?: checkNotNull(provide(environment, classId), { ClassNotFoundException(classId.fullName) }).`class`,
-                AccessLevel[method.modifiers],
-                isStatic(method.modifiers)
+                AccessLevel[method.access],
+                isStatic(method.access)
         )
     }
 
-    private fun findVisibleField(from: Class<*>, current: Class<*>, fieldName: String): Field? {
-        val declared = tryIgnoring(NoSuchFieldException::class) { current.getDeclaredField(fieldName) }
-                ?: current.superclass?.let { return findVisibleField(from, it, fieldName) }
-                ?: return null
-
-        return declared.modifiers.let { mod->
-            declared.takeIf {
-                when {
-                    isStatic(mod) || isPrivate(mod) -> from == current
-                    isPublic(mod) -> true // Not needed here but would be needed if this method was public
-                    isProtected(mod) -> true // Assumes that from is an instance of current
-                    else -> from.`package` == current.`package`
-                }
-            }
+    /**
+     * Finds the first field with the given name on the class or on its super classes, like `getDeclaredField` did.
+     * Returns null when the field found is not visible from the class.
+     */
+    private fun findVisibleField(from: Class<*>, fieldName: String): Pair<Class<*>, Member>? {
+        var current: Class<*>? = from
+        while(current != null) {
+            val declared = current.members()?.fields?.get(fieldName)
+            if(declared != null)
+                return if(isVisible(from, current, declared.access)) current to declared else null
+            current = current.superclass
         }
-    }
-
-    private fun getVisibleField(`class`: Class<*>, fieldName: String): Field? {
-        return findVisibleField(`class`, `class`, fieldName)
+        return null
     }
 
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier): FieldStructure? {
-        val `class` = try {
-            classLoader.loadClass(classId.hotName)
-        }
-        catch (ignored: ClassNotFoundException) {
-            return null
-        }
-
-        val field = getVisibleField(`class`, fieldId.name) ?: return null
-        val ownerId = ClassIdentifier(field.declaringClass.coldName)
-        val mod = field.modifiers
+        val `class` = load(classId) ?: return null
+        val (owner, field) = findVisibleField(`class`, fieldId.name) ?: return null
+        val ownerId = ClassIdentifier(owner.coldName)
+        val mod = field.access
         return FieldStructure(
                 fieldId.toChange(),
                 checkNotNull(provide(environment, ownerId), { ClassNotFoundException(ownerId.fullName) }).`class`,
                 AccessLevel[mod],
                 isStatic(mod),
-                ParameterDescriptor(getDescriptor(field.type)) {
-                    checkNotNull(provide(environment, it)).`class`
-                }
+                ParameterDescriptor(field.descriptor, environment::typeChange)
         )
     }
 }
@@ -18,58 +18,96 @@ package org.platestack.bukkit.scanner.rework
 
 import org.platestack.bukkit.scanner.structure.*
 import java.io.InputStream
-import java.lang.ref.WeakReference
+import java.util.concurrent.atomic.AtomicLong
 
 class HybridScanner(classLoader: ClassLoader, private val coldStream: (ClassIdentifier) -> InputStream?) : HotScanner(classLoader), InputStreamScanner {
-    constructor(classLoader: ClassLoader): this(classLoader, ClassResourceLoader(classLoader).let {
-        {id: ClassIdentifier -> it.getResourceAsStream(id.fullName.replace('.','/')+".class") }
-    })
+    constructor(classLoader: ClassLoader): this(classLoader, ClassResourceLoader(classLoader))
 
-    private val findLoadedClassMethod = ClassLoader::class.java.getDeclaredMethod("findLoadedClass", String::class.java).also { it.isAccessible = true }
-    private val knownLoadedClasses = hashMapOf<String, WeakReference<Class<*>>>()
-
-    fun ClassLoader.findLoadedClass(name: String): Class<*>? {
-        return findLoadedClassMethod(this, name) as Class<*>? ?: parent?.findLoadedClass(name)
+    /**
+     * Creates a scanner which loads the hot classes from the class loader and reads the cold classes from the resource loader
+     */
+    constructor(classLoader: ClassLoader, resourceLoader: ResourceLoader): this(classLoader, {
+        id: ClassIdentifier -> resourceLoader.getResourceAsStream(id.fullName.replace('.','/')+".class")
+    }) {
+        jarLoader = resourceLoader as? JarResourceLoader
     }
 
-    fun isClassLoaded(name: String): Boolean {
-        knownLoadedClasses[name]?.let { ref->
-            if(ref.get() == null) {
-                knownLoadedClasses.remove(name, ref)
-            }
-            else {
-                return true
-            }
-        }
-
-        return classLoader.findLoadedClass(name)?.also { knownLoadedClasses[name] = WeakReference(it) } != null
+    /**
+     * The resource loader which reads the cold classes, when they are read from indexed jars
+     */
+    private var jarLoader: JarResourceLoader? = null
+
+    /**
+     * The classes which are already loaded, they are scanned hot and the others are scanned cold
+     */
+    val loadedClasses = LoadedClassRegistry(classLoader)
+
+    private val hot = AtomicLong()
+    private val cold = AtomicLong()
+
+    /**
+     * The number of scans which were answered by the loaded classes
+     */
+    val hotScans get() = hot.get()
+
+    /**
+     * The number of scans which were answered by the class files
+     */
+    val coldScans get() = cold.get()
+
+    fun isClassLoaded(name: String) = loadedClasses.isLoaded(name)
+
+    /**
+     * Checks if the class must be scanned hot and counts the scan
+     */
+    private fun isHot(classId: ClassIdentifier): Boolean {
+        val loaded = isClassLoaded(classId.hotName)
+        (if(loaded) hot else cold).incrementAndGet()
+        return loaded
     }
 
+    override val summaries = ClassSummaryCache()
+    override var parser = ClassSummary.Parser.ASM
+
     override fun getColdStream(classId: ClassIdentifier) = coldStream(classId)
 
+    override fun getColdEntry(classId: ClassIdentifier) = jarLoader?.getEntry(classId.fullName+".class")
+
+    /**
+     * The member tables of the loaded classes are read from the same class files and summary cache as the cold scans
+     */
+    override fun summarizeLoaded(type: Class<*>) = summarize(ClassIdentifier(type.coldName))
+
+    /**
+     * Prefetches the classes which are not loaded, the loaded classes are scanned hot
+     */
+    override fun prefetch(classIds: Collection<ClassIdentifier>, parallelism: Int) {
+        super<InputStreamScanner>.prefetch(classIds.filterNot { isClassLoaded(it.hotName) }, parallelism)
+    }
+
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean): ClassStructure? {
-        if(isClassLoaded(classId.hotName))
+        if(isHot(classId))
             return super<HotScanner>.scan(environment, classId, fullParents)
         else
             return super<InputStreamScanner>.scan(environment, classId, fullParents)
     }
 
     override fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier): ClassStructure? {
-        if(isClassLoaded(classId.hotName))
+        if(isHot(classId))
             return super<HotScanner>.fullScan(environment, classId)
         else
             return super<InputStreamScanner>.fullScan(environment, classId)
     }
 
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure? {
-        if(isClassLoaded(classId.hotName))
+        if(isHot(classId))
             return super<HotScanner>.scan(environment, classId, methodId)
         else
             return super<InputStreamScanner>.scan(environment, classId, methodId)
     }
 
     override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier): FieldStructure? {
-        if(isClassLoaded(classId.hotName))
+        if(isHot(classId))
             return super<HotScanner>.scan(environment, classId, fieldId)
         else
             return super<InputStreamScanner>.scan(environment, classId, fieldId)
@@ -16,34 +16,85 @@
 
 package org.platestack.bukkit.scanner.rework
 
-import org.objectweb.asm.ClassReader
-import org.platestack.bukkit.scanner.structure.*
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
 import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
+/**
+ * Cold scanner which reads the class files from streams, the summaries of the class files are kept in [summaries]
+ */
 interface InputStreamScanner : ColdScanner {
+    val summaries: ClassSummaryCache
+
+    /**
+     * The parser which reads the summaries from the class files
+     */
+    val parser: ClassSummary.Parser get() = ClassSummary.Parser.ASM
+
     fun getColdStream(classId: ClassIdentifier): InputStream?
 
-    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean): ClassStructure? {
-        return getColdStream(classId)?.use {
-            scan(environment, classId, fullParents, ClassReader(it))
+    override fun summarize(classId: ClassIdentifier): ClassSummary? {
+        return summaries.getOrRead(classId) { id ->
+            getColdStream(id)?.use { parser.parse(id, it.readBytes()) }
         }
     }
 
-    override fun fullScan(environment: RemapEnvironment, classId: ClassIdentifier): ClassStructure? {
-        return getColdStream(classId)?.use {
-            fullScan(environment, classId, ClassReader(it))
+    /**
+     * Gets the indexed jar entry of a class, when the class files are read from a [JarResourceLoader]
+     */
+    fun getColdEntry(classId: ClassIdentifier): JarResourceLoader.Entry? = null
+
+    /**
+     * Reads the summaries of the classes which are stored on indexed jars.
+     *
+     * The entries are grouped by jar and sorted by their offsets, so every jar is read in a single sequential pass,
+     * and the summaries are parsed by other threads while the next entries are read. At most
+     * [ClassSummaryCache.maxSize] classes are prefetched, the other classes are read when they are scanned.
+     */
+    override fun prefetch(classIds: Collection<ClassIdentifier>, parallelism: Int) {
+        val entries = classIds.asSequence()
+                .filterNot { it in summaries }
+                .mapNotNull { id -> getColdEntry(id)?.let { id to it } }
+                .take(summaries.maxSize)
+                .groupBy { it.second.jar }
+                .values.flatMap { jar -> jar.sortedBy { it.second.offset } }
+
+        if(entries.isEmpty())
+            return
+
+        // Unreadable entries are skipped and reported when the class is scanned
+        fun read(entry: JarResourceLoader.Entry) = try { entry.read() } catch (ignored: Exception) { null }
+
+        fun parse(classId: ClassIdentifier, bytes: ByteArray) {
+            try {
+                summaries.getOrRead(classId) { parser.parse(it, bytes) }
+            }
+            catch (ignored: Exception) {
+                // Reported when the class is scanned
+            }
         }
-    }
 
-    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier): FieldStructure? {
-        return getColdStream(classId)?.use {
-            scan(environment, classId, fieldId, ClassReader(it))
+        if(parallelism <= 1) {
+            entries.forEach { (id, entry) -> read(entry)?.let { parse(id, it) } }
+            return
         }
-    }
 
-    override fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure? {
-        return getColdStream(classId)?.use {
-            scan(environment, classId, methodId, ClassReader(it))
+        // The caller parses the entries itself when the workers are too far behind
+        val pool = ThreadPoolExecutor(
+                parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                ArrayBlockingQueue(parallelism * 64), ThreadPoolExecutor.CallerRunsPolicy()
+        )
+
+        try {
+            entries.mapNotNull { (id, entry) ->
+                val bytes = read(entry) ?: return@mapNotNull null
+                pool.submit { parse(id, bytes) }
+            }.forEach { it.get() }
+        }
+        finally {
+            pool.shutdown()
         }
     }
 }
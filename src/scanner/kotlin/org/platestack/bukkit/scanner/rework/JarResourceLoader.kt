@@ -0,0 +1,254 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import java.io.ByteArrayInputStream
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.READ
+import java.util.*
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+/**
+ * A resource loader which reads the entries of jar files directly.
+ *
+ * The central directories of all jars are indexed once when the loader is created, so lookups are a single hash probe
+ * and the entry bytes are read from the memory mapped jar without going through class loaders or jar URL connections.
+ *
+ * When the same entry is available in more than one jar the first jar wins, like a parent first class loader.
+ * Resources which are not in any of the jars are looked up in the [fallback] loader.
+ *
+ * ZIP64 archives are not supported.
+ *
+ * After the loader is closed all resources are looked up in the [fallback] loader, so objects which still hold the
+ * loader, like lazily resolved structures, keep working.
+ */
+class JarResourceLoader(jars: List<File>, val fallback: ResourceLoader? = null) : ResourceLoader, Closeable {
+    /**
+     * An indexed jar entry
+     * @property offset The offset of the local header of the entry, entries are stored in this order on the jar
+     */
+    class Entry internal constructor(val jar: Jar, val name: String, val method: Int, val compressedSize: Int, val size: Int, val offset: Long) {
+        val url get() = URL("jar:${jar.url}!/$name")
+
+        /**
+         * Reads and decompresses the bytes of this entry
+         */
+        fun read() = jar.read(this)
+    }
+
+    /**
+     * A jar file which is memory mapped and has its central directory indexed
+     */
+    class Jar internal constructor(val file: File) : Closeable {
+        private companion object {
+            const val END_SIGNATURE = 0x06054b50
+            const val CENTRAL_SIGNATURE = 0x02014b50
+            const val LOCAL_SIGNATURE = 0x04034b50
+            const val END_SIZE = 22
+            const val LOCAL_SIZE = 30
+            const val STORED = 0
+            const val DEFLATED = 8
+        }
+
+        internal val url = file.toURI().toURL()
+        private val channel = FileChannel.open(file.toPath(), READ)
+        private val size = channel.size()
+        private val mapped = if(size <= Int.MAX_VALUE) channel.map(FileChannel.MapMode.READ_ONLY, 0, size) else null
+
+        /**
+         * The entries of this jar, in the central directory order
+         */
+        val entries: Map<String, Entry>
+
+        init {
+            try {
+                entries = index()
+            }
+            catch (e: Exception) {
+                channel.close()
+                throw e as? IOException ?: ZipException("Failed to index $file: $e")
+            }
+        }
+
+        /**
+         * Reads a region of the jar, from the memory mapped file when possible
+         */
+        private fun region(position: Long, length: Int): ByteBuffer {
+            if(position < 0 || position + length > size)
+                throw ZipException("Region out of the bounds of $file")
+
+            val buffer = if(mapped != null) {
+                (mapped.duplicate().position(position.toInt()) as ByteBuffer).slice().limit(length) as ByteBuffer
+            }
+            else {
+                ByteBuffer.allocate(length).also {
+                    var current = position
+                    while(it.hasRemaining()) {
+                        val read = channel.read(it, current)
+                        if(read < 0)
+                            throw ZipException("Unexpected end of $file")
+                        current += read
+                    }
+                    it.flip()
+                }
+            }
+
+            return buffer.order(ByteOrder.LITTLE_ENDIAN)
+        }
+
+        private fun ByteBuffer.unsignedShort(index: Int) = getShort(index).toInt() and 0xFFFF
+        private fun ByteBuffer.unsignedInt(index: Int) = getInt(index).toLong() and 0xFFFFFFFFL
+
+        private fun index(): Map<String, Entry> {
+            val tailSize = minOf(size, END_SIZE + 0xFFFFL).toInt()
+            val tail = region(size - tailSize, tailSize)
+            val end = (tailSize - END_SIZE downTo 0).firstOrNull { tail.getInt(it) == END_SIGNATURE }
+                    ?: throw ZipException("The end of the central directory was not found in $file")
+
+            val count = tail.unsignedShort(end + 10)
+            val directorySize = tail.unsignedInt(end + 12)
+            val directoryOffset = tail.unsignedInt(end + 16)
+            if(count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL)
+                throw ZipException("ZIP64 is not supported: $file")
+
+            val directory = region(directoryOffset, directorySize.toInt())
+            val entries = LinkedHashMap<String, Entry>(count * 2)
+            var position = 0
+            repeat(count) {
+                if(directory.getInt(position) != CENTRAL_SIGNATURE)
+                    throw ZipException("Invalid central directory entry at $position on $file")
+
+                val flags = directory.unsignedShort(position + 8)
+                val method = directory.unsignedShort(position + 10)
+                val compressedSize = directory.unsignedInt(position + 20)
+                val entrySize = directory.unsignedInt(position + 24)
+                val nameLength = directory.unsignedShort(position + 28)
+                val extraLength = directory.unsignedShort(position + 30)
+                val commentLength = directory.unsignedShort(position + 32)
+                val offset = directory.unsignedInt(position + 42)
+
+                val nameBytes = ByteArray(nameLength)
+                (directory.duplicate().position(position + 46) as ByteBuffer).get(nameBytes)
+                val name = String(nameBytes, Charsets.UTF_8)
+
+                // Encrypted entries and unknown compressions are left to the fallback
+                if(flags and 1 == 0 && (method == STORED || method == DEFLATED) && compressedSize <= Int.MAX_VALUE && entrySize <= Int.MAX_VALUE)
+                    entries.putIfAbsent(name, Entry(this, name, method, compressedSize.toInt(), entrySize.toInt(), offset))
+
+                position += 46 + nameLength + extraLength + commentLength
+            }
+
+            return entries
+        }
+
+        internal fun read(entry: Entry): ByteArray {
+            val header = region(entry.offset, LOCAL_SIZE)
+            if(header.getInt(0) != LOCAL_SIGNATURE)
+                throw ZipException("Invalid local header for ${entry.name} on $file")
+
+            val dataOffset = entry.offset + LOCAL_SIZE + header.unsignedShort(26) + header.unsignedShort(28)
+            val data = region(dataOffset, entry.compressedSize)
+            val bytes = ByteArray(entry.size)
+            if(entry.method == STORED) {
+                data.get(bytes)
+                return bytes
+            }
+
+            val compressed = ByteArray(entry.compressedSize)
+            data.get(compressed)
+            val inflater = Inflater(true)
+            try {
+                inflater.setInput(compressed)
+                var read = 0
+                while(read < bytes.size) {
+                    val inflated = inflater.inflate(bytes, read, bytes.size - read)
+                    if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw ZipException("Truncated entry ${entry.name} on $file")
+                    read += inflated
+                }
+            }
+            finally {
+                inflater.end()
+            }
+
+            return bytes
+        }
+
+        /**
+         * Closes the file, the mapped memory is released when it's garbage collected
+         */
+        override fun close() {
+            channel.close()
+        }
+    }
+
+    val jars: List<Jar>
+    private val index: Map<String, Entry>
+    @Volatile private var closed = false
+
+    init {
+        val opened = ArrayList<Jar>(jars.size)
+        try {
+            jars.forEach { opened += Jar(it) }
+        }
+        catch (e: Exception) {
+            opened.forEach { it.close() }
+            throw e
+        }
+
+        this.jars = opened
+        index = HashMap<String, Entry>(opened.sumBy { it.entries.size } * 2).also { index ->
+            opened.forEach { jar -> jar.entries.forEach { index.putIfAbsent(it.key, it.value) } }
+        }
+    }
+
+    /**
+     * Gets the indexed entry which would be used for a resource
+     */
+    fun getEntry(name: String): Entry? = if(closed) null else index[name]
+
+    /**
+     * Reads the bytes of a resource from the jars or from the fallback
+     */
+    fun getBytes(name: String): ByteArray? = getEntry(name)?.read() ?: fallback?.getResourceAsStream(name)?.use { it.readBytes() }
+
+    override fun getResource(name: String): URL? = getEntry(name)?.url ?: fallback?.getResource(name)
+
+    override fun getResources(name: String): Enumeration<URL> {
+        val urls = ArrayList<URL>()
+        if(!closed)
+            jars.mapNotNullTo(urls) { it.entries[name]?.url }
+        fallback?.getResources(name)?.let { urls += it.toList() }
+        return Collections.enumeration(urls.distinct())
+    }
+
+    override fun getResourceAsStream(name: String): InputStream? =
+            getEntry(name)?.let { ByteArrayInputStream(it.read()) } ?: fallback?.getResourceAsStream(name)
+
+    override fun close() {
+        closed = true
+        jars.forEach { it.close() }
+    }
+}
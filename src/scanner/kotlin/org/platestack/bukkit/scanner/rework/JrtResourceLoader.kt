@@ -0,0 +1,77 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import java.io.InputStream
+import java.net.URI
+import java.net.URL
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+
+/**
+ * A resource loader which reads the classes of the running Java 9+ runtime from the `jrt:/` file system.
+ *
+ * The class loaders of the server don't always expose the runtime classes as resources, this loader finds them
+ * without going through any class loader. All modules are indexed when the loader is created, when the same resource
+ * is in more than one module the first module wins.
+ */
+class JrtResourceLoader : ResourceLoader {
+    companion object {
+        private val root = URI.create("jrt:/")
+
+        /**
+         * If the running runtime has a `jrt:/` file system, Java 8 and older don't have it
+         */
+        val isAvailable by lazy {
+            try {
+                FileSystems.getFileSystem(root)
+                true
+            }
+            catch (e: Exception) {
+                false
+            }
+        }
+    }
+
+    private val paths: Map<String, Path>
+
+    /**
+     * The names of all resources which are available in the runtime modules
+     */
+    val names: Set<String> get() = paths.keys
+
+    init {
+        val found = LinkedHashMap<String, Path>()
+        val modules = FileSystems.getFileSystem(root).getPath("/modules")
+        Files.newDirectoryStream(modules).use { it.sorted().forEach { module ->
+            Files.walk(module).use { files ->
+                files.filter { Files.isRegularFile(it) }.forEach {
+                    found.putIfAbsent(module.relativize(it).toString(), it)
+                }
+            }
+        }}
+        paths = found
+    }
+
+    override fun getResource(name: String): URL? = paths[name]?.toUri()?.toURL()
+
+    override fun getResourceAsStream(name: String): InputStream? = paths[name]?.let { Files.newInputStream(it) }
+
+    override fun getResources(name: String): Enumeration<URL> = Collections.enumeration(listOfNotNull(getResource(name)))
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks which classes were already loaded by a class loader or by any of its parents.
+ *
+ * The loaders are queried through a `findLoadedClass` method handle which is bound once, see [LoadedClassFinder].
+ * The classes which were found are remembered by weak references, the entries of classes which were collected are
+ * removed from the registry when it's used, so it never holds stale entries for long. Classes which were not loaded
+ * are not remembered because they may be loaded at any time.
+ */
+class LoadedClassRegistry(val classLoader: ClassLoader) {
+    private class Entry(val name: String, `class`: Class<*>, queue: ReferenceQueue<Class<*>>) : WeakReference<Class<*>>(`class`, queue)
+
+    private val queue = ReferenceQueue<Class<*>>()
+    private val loaded = ConcurrentHashMap<String, Entry>()
+
+    /**
+     * Removes the entries of the classes which were collected
+     */
+    private fun expunge() {
+        while(true) {
+            val entry = queue.poll() as Entry? ?: return
+            loaded.remove(entry.name, entry)
+        }
+    }
+
+    private fun ClassLoader.findLoaded(name: String): Class<*>? {
+        var current: ClassLoader? = this
+        while(current != null) {
+            LoadedClassFinder.findLoadedClass(current, name)?.let { return it }
+            current = current.parent
+        }
+        return null
+    }
+
+    /**
+     * Gets a class which was already loaded by the class loader or by one of its parents
+     * @param name The binary name of the class, using `.` as package separator
+     */
+    operator fun get(name: String): Class<*>? {
+        expunge()
+        loaded[name]?.get()?.let { return it }
+
+        val found = classLoader.findLoaded(name) ?: return null
+        loaded[name] = Entry(name, found, queue)
+        return found
+    }
+
+    /**
+     * Checks if a class was already loaded by the class loader or by one of its parents
+     * @param name The binary name of the class, using `.` as package separator
+     */
+    fun isLoaded(name: String) = get(name) != null
+
+    /**
+     * The number of classes which are currently remembered
+     */
+    val size get() = loaded.size
+}
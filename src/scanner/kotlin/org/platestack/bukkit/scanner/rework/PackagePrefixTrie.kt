@@ -0,0 +1,182 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.platestack.bukkit.scanner.structure.PackageIdentifier
+import org.platestack.bukkit.scanner.structure.PackageMove
+
+/**
+ * A trie of the package names which are affected by an environment.
+ *
+ * It answers in a single walk over an internal class name, without creating any object, if the class can ever be
+ * remapped and which package move applies to it, so the references to untouched packages can be skipped without
+ * asking the scanner.
+ *
+ * The trie is a snapshot of the environment and its parents when it is created, [RemapEnvironment.prefixes] creates
+ * a new trie when the environments change.
+ *
+ * @param sealed Package prefixes whose classes never extend a remapped class, so their members are never remapped.
+ * A prefix starting with `!` reopens a sub-package of a sealed prefix. A prefix which contains a renamed or moved
+ * package is not sealed, even if it's listed.
+ */
+class PackagePrefixTrie(environment: RemapEnvironment, sealed: Collection<String> = DEFAULT_SEALED) {
+    companion object {
+        val DEFAULT_SEALED = listOf(
+                "java/", "javax/", "jdk/", "sun/", "com/sun/", "kotlin/",
+                "org/bukkit/", "!org/bukkit/craftbukkit/",
+                "com/google/", "org/objectweb/asm/"
+        )
+    }
+
+    /**
+     * How much of a class may be changed by the remapper
+     */
+    enum class Scope {
+        /**
+         * Neither the class name nor its members are ever remapped
+         */
+        UNTOUCHED,
+
+        /**
+         * The class name is never remapped but inherited members may be
+         */
+        MEMBERS,
+
+        /**
+         * The class name may be remapped
+         */
+        REMAPPED
+    }
+
+    private class Node(val name: String) {
+        var children = emptyArray<Node>()
+
+        /**
+         * The move registered to this package when it renames or relocates the package, it affects all sub-packages
+         */
+        var move: PackageMove? = null
+
+        /**
+         * If classes which are directly inside this package are renamed
+         */
+        var mapped = false
+
+        var sealed: Boolean? = null
+
+        fun child(className: String, start: Int, end: Int): Node? {
+            val length = end - start
+            for(child in children) {
+                if(child.name.length == length && className.regionMatches(start, child.name, 0, length))
+                    return child
+            }
+            return null
+        }
+
+        fun getOrAdd(name: String) = children.find { it.name == name } ?: Node(name).also { children += it }
+
+        /**
+         * If this package or any of its sub-packages which are not reopened is renamed or moved
+         */
+        fun isAffected(): Boolean = mapped || move != null || children.any { it.sealed != false && it.isAffected() }
+    }
+
+    private val root = Node("")
+
+    init {
+        generateSequence(environment) { it.parent }.forEach { env ->
+            env.packages.values.forEach { move ->
+                if(move.from != move.to) {
+                    node(move.from).let { if(it.move == null) it.move = move }
+                }
+            }
+
+            env.classes.values.forEach { structure ->
+                val change = structure.`class`
+                if(change.from != change.to) {
+                    node(change.from.`package`).mapped = true
+                }
+            }
+        }
+
+        // The reopened sub-packages are marked first, they don't prevent their parents from being sealed
+        val (open, closed) = sealed.partition { it.startsWith('!') }
+        open.forEach { node(it.removePrefix("!").trimEnd('/')).sealed = false }
+        closed.forEach {
+            val node = node(it.trimEnd('/'))
+            node.sealed = !node.isAffected()
+        }
+    }
+
+    private fun node(`package`: PackageIdentifier) = node(`package`.fullName)
+
+    private fun node(fullName: String): Node {
+        if(fullName.isEmpty())
+            return root
+
+        var node = root
+        fullName.split('/').forEach { node = node.getOrAdd(it) }
+        return node
+    }
+
+    /**
+     * Finds how much of the class may be changed by the remapper
+     * @param className The internal name of the class, like `java/lang/Object`
+     */
+    fun scope(className: String): Scope {
+        var node = root
+        var sealed = false
+        var start = 0
+        while(true) {
+            if(node.move != null)
+                return Scope.REMAPPED
+
+            node.sealed?.let { sealed = it }
+
+            val end = className.indexOf('/', start)
+            if(end < 0) {
+                if(node.mapped)
+                    return Scope.REMAPPED
+                break
+            }
+
+            node = node.child(className, start, end) ?: break
+            start = end + 1
+        }
+
+        return if(sealed) Scope.UNTOUCHED else Scope.MEMBERS
+    }
+
+    /**
+     * Finds the move of the deepest package in the class name which is renamed or relocated
+     * @param className The internal name of the class, like `java/lang/Object`
+     * @return The move or `null` if the package of the class and all its parents are kept unchanged
+     */
+    fun move(className: String): PackageMove? {
+        var node = root
+        var move = root.move
+        var start = 0
+        while(true) {
+            val end = className.indexOf('/', start)
+            if(end < 0)
+                return move
+
+            node = node.child(className, start, end) ?: return move
+            node.move?.let { move = it }
+            start = end + 1
+        }
+    }
+}
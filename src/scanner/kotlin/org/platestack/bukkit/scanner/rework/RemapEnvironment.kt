@@ -21,27 +21,88 @@ import org.platestack.bukkit.scanner.*
 import org.platestack.bukkit.scanner.mappings.Mappings
 import org.platestack.bukkit.scanner.structure.*
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 
-class RemapEnvironment(val parent: RemapEnvironment? = null) {
-    val packages: Map<PackageToken, PackageMove> = sortedMapOf()
-    val classes: Map<ClassToken, ClassStructure> = sortedMapOf()
+/**
+ * A set of class structures and package moves which are used to remap classes.
+ *
+ * The registered entries are kept in concurrent hash maps, they can be read and registered from any thread.
+ * The entries have no particular order, [export] sorts them when needed.
+ *
+ * @property isBase If this environment only holds structures which are never remapped, like the prebuilt
+ * [BaseEnvironments], so it doesn't take part in the package prefixes of the remappers
+ */
+class RemapEnvironment(val parent: RemapEnvironment? = null, val isBase: Boolean = false) {
+    private val packageMap = ConcurrentHashMap<PackageToken, PackageMove>()
+    private val classMap = ConcurrentHashMap<ClassToken, ClassStructure>()
+
+    val packages: Map<PackageToken, PackageMove> get() = packageMap
+    val classes: Map<ClassToken, ClassStructure> get() = classMap
+
+    /**
+     * Package prefixes whose classes never extend a remapped class, see [PackagePrefixTrie]
+     */
+    @Volatile var sealedPackages: Collection<String> = PackagePrefixTrie.DEFAULT_SEALED
+
+    @Volatile private var prefixTrie: PrefixTrie? = null
+    private class PrefixTrie(val stamp: Long, val trie: PackagePrefixTrie)
+
+    /**
+     * Changes when a class or package is registered to this environment or to its parents or when a target name changes
+     */
+    private fun stamp(): Long {
+        var stamp = Projections.version.toLong() shl 32
+        var environment: RemapEnvironment? = this
+        while(environment != null) {
+            stamp += environment.classMap.size + environment.packageMap.size
+            environment = environment.parent
+        }
+        return stamp
+    }
+
+    /**
+     * The prefix trie of the packages affected by this environment and its parents.
+     *
+     * It's created on the first access and created again after the environments change, which normally stops
+     * happening after the mappings are applied.
+     */
+    val prefixes: PackagePrefixTrie get() {
+        val stamp = stamp()
+        prefixTrie?.let { if(it.stamp == stamp) return it.trie }
+        return PackagePrefixTrie(this, sealedPackages).also { prefixTrie = PrefixTrie(stamp, it) }
+    }
+
+    /**
+     * Provides the change of a class which is referred by a member descriptor, without scanning it.
+     *
+     * Registered classes provide their own change. The other classes were never renamed by a mapping, so their target
+     * names depend only on the registered packages and outer classes and are derived exactly like a scan would do.
+     */
+    fun typeChange(`class`: ClassToken): ClassChange =
+            this[`class`]?.`class` ?: `class`.toChange({ packageMove(it) }) { this[it]?.`class` }
+
+    private fun packageMove(`package`: PackageToken): PackageMove =
+            this[`package`] ?: PackageMove(`package`.toChange { packageMove(it).old })
 
     @BootReflectionTarget
     fun export(dir: File) {
+        val sortedPackages = packages.toSortedMap().values
+        val sortedClasses = classes.toSortedMap().values
+
         dir.mkdirs()
         File(dir, "mappings.srg").writer().buffered().use { out->
-            packages.values.forEach { out.write("PK: ${it.from} ${it.to}\n") }
-            classes.values.forEach { out.write("CL: ${it.`class`.from} ${it.`class`.to}\n") }
-            classes.values.forEach { c ->
-                c.fields.values.forEach { out.write("FD: ${c.`class`.from}/${it.field.from} ${c.`class`.to}/${it.field.to}\n") }
+            sortedPackages.forEach { out.write("PK: ${it.from} ${it.to}\n") }
+            sortedClasses.forEach { out.write("CL: ${it.`class`.from} ${it.`class`.to}\n") }
+            sortedClasses.forEach { c ->
+                c.fields.toSortedMap().values.forEach { out.write("FD: ${c.`class`.from}/${it.field.from} ${c.`class`.to}/${it.field.to}\n") }
             }
-            classes.values.forEach { c ->
-                c.methods.values.forEach { out.write("MD: ${c.`class`.from}/${it.method.from} ${c.`class`.to}/${it.method.to}\n") }
+            sortedClasses.forEach { c ->
+                c.methods.toSortedMap().values.forEach { out.write("MD: ${c.`class`.from}/${it.method.from} ${c.`class`.to}/${it.method.to}\n") }
             }
         }
 
         File(dir, "structures.txt").writer().buffered().use { out->
-            classes.values.forEach { c ->
+            sortedClasses.forEach { c ->
                 out.write("${c.`class`.from} -> ${c.`class`.to}\n")
                 out.write("| itf=${c.isInterface}\n")
                 out.write("| full=${c.isFull}\n")
@@ -51,14 +112,14 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
                     out.write("| | ${it.`class`.from} -> ${it.`class`.to} ${if(it.`super`?.isFull == true) "(full)" else "(partial)"}\n")
                 }
                 out.write("| fields=${c.fields.size}\n")
-                c.fields.values.forEach {
+                c.fields.toSortedMap().values.forEach {
                     out.write("| | ${it.field.from} -> ${it.field.to}\n")
                     out.write("| | | static=${it.static}\n")
                     out.write("| | | access=${it.access}\n")
                     out.write("| | | type=${it.descriptor?.from} -> ${it.descriptor?.to}\n")
                     out.write("| | | owner=${it.owner}\n")
                 }
-                c.methods.values.forEach {
+                c.methods.toSortedMap().values.forEach {
                     out.write("| | ${it.method.from} -> ${it.method.to}\n")
                     out.write("| | | static=${it.isStatic}\n")
                     out.write("| | | access=${it.access}\n")
@@ -72,19 +133,16 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
     fun applyToForeign(mappings: Mappings) {
         val packagesBefore = packages.values.associate { it.from to it.to }
         val classesBefore = classes.values.associate { it.`class`.from to it.`class`.to }
+        // Keyed by the owners, which may be shared structures of the base environments
         val methodsBefore = classes.values.asSequence().flatMap {
-            val cf = it.`class`.from
-            val ct = it.`class`.to
             it.methods.values.asSequence().map {
-                MethodToken(cf, it.method.from) to MethodToken(ct, it.method.to)
+                MethodToken(it.owner.from, it.method.from) to MethodToken(it.owner.to, it.method.to)
             }
         }.toMap()
 
         val fieldsBefore = classes.values.asSequence().flatMap {
-            val cf = it.`class`.from
-            val ct = it.`class`.to
             it.fields.values.asSequence().map {
-                FieldToken(cf, it.field.from) to FieldToken(ct, it.field.to)
+                FieldToken(it.owner.from, it.field.from) to FieldToken(it.owner.to, it.field.to)
             }
         }.toMap()
 
@@ -131,7 +189,7 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
         }
 
         //classes.values.asSequence().map { it.`class` }.sortedBy { it.from }.forEach { println("CL: ${it.from} ${it.to}") }
-        (packages as MutableMap) += newPackages.map { it.key to PackageMove(it.value) }
+        packageMap += newPackages.map { it.key to PackageMove(it.value) }
     }
 
     fun applyToNative(mappings: Mappings) {
@@ -176,9 +234,15 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
         }
 
         //classes.values.asSequence().map { it.`class` }.sortedBy { it.from }.forEach { println("CL: ${it.from} ${it.to}") }
-        (packages as MutableMap) += newPackages.map { it.key to PackageMove(it.value) }
+        packageMap += newPackages.map { it.key to PackageMove(it.value) }
     }
 
+    /**
+     * Creates an environment which reverts the changes of this environment.
+     *
+     * The structures of the base environments are never remapped, so they are shared instead of inverted and the
+     * inverse keeps the parent when it's a base environment.
+     */
     fun inverse(): RemapEnvironment {
         val packageChanges = ReverseMap<PackageChange>()
 
@@ -208,10 +272,25 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
 
         packages.values.forEach { it.inverse() }
 
+        fun baseStructure(`class`: ClassToken): ClassStructure? {
+            var environment = parent
+            while(environment != null) {
+                val structure = environment.classMap[`class`]
+                if(structure != null)
+                    return if(environment.isBase) structure else null
+                environment = environment.parent
+            }
+            return null
+        }
+
         val classChanges = ReverseMap<ClassChange>()
 
         fun ClassChange.inverse(): ClassChange {
             classChanges[this]?.let { return it }
+            if(baseStructure(from)?.`class` === this) {
+                classChanges[this] = this
+                return this
+            }
 
             val inverse = ClassChange(
                     `package`.inverse(),
@@ -236,7 +315,15 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
         }
 
         fun ParameterDescriptor.inverse(): ParameterDescriptor {
-            return ParameterDescriptor(array, base, type?.inverse())
+            // Primitive descriptors are shared and have nothing to inverse
+            val typeId = typeId ?: return this
+            resolvedType?.let { return ParameterDescriptor(array, base, it.inverse()) }
+
+            // Keeps the type unresolved, the inverse is resolved from this descriptor when it's requested
+            val original = this
+            return ParameterDescriptor(array, base, typeChange(typeId).to) {
+                synchronized(classChanges) { checkNotNull(original.type).inverse() }
+            }
         }
 
         fun FieldStructure.inverse(): FieldStructure {
@@ -280,6 +367,13 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
 
         fun ClassStructure.inverse(): ClassStructure {
             classStructures[this]?.let { return it }
+            if(baseStructure(`class`.from) === this) {
+                classStructures[this] = this
+                classChanges[`class`] = `class`
+                fields.values.forEach { fieldChanges[it.field] = it.field }
+                methods.values.forEach { methodChanges[it.method] = it.method }
+                return this
+            }
 
             val inverse = ClassStructure(
                     `class`.inverse(),
@@ -298,9 +392,9 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
 
         classes.values.forEach { it.inverse() }
 
-        val inverse = RemapEnvironment()
-        (inverse.packages as MutableMap) += packageMoves.values.associate { it.from to it }
-        (inverse.classes as MutableMap) += classStructures.values.associate { it.`class`.from to it }
+        val inverse = RemapEnvironment(parent?.takeIf { it.isBase })
+        inverse.packageMap += packageMoves.values.associate { it.from to it }
+        inverse.classMap += classStructures.asSequence().filter { it.key !== it.value }.associate { it.value.`class`.from to it.value }
         return inverse
     }
 
@@ -309,10 +403,27 @@ class RemapEnvironment(val parent: RemapEnvironment? = null) {
     operator fun get(`class`: ClassToken): ClassStructure? = classes[`class`] ?: parent?.get(`class`)
 
     operator fun set(`class`: ClassToken, structure: ClassStructure) {
-        (classes as MutableMap)[`class`] = structure
+        classMap[`class`] = structure
+    }
+
+    /**
+     * Registers the structure only if no other structure was registered to the class before,
+     * threads racing to register the same class will all receive the same structure.
+     * @return The structure which is registered to the class after this call
+     */
+    fun register(`class`: ClassToken, structure: ClassStructure): ClassStructure {
+        return classMap.putIfAbsent(`class`, structure) ?: structure
     }
 
     operator fun set(`package`: PackageToken, structure: PackageMove) {
-        (packages as MutableMap)[`package`] = structure
+        packageMap[`package`] = structure
+    }
+
+    /**
+     * Registers all packages and classes which are registered directly to the other environment
+     */
+    fun putAll(other: RemapEnvironment) {
+        packageMap += other.packageMap
+        classMap += other.classMap
     }
 }
@@ -0,0 +1,568 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.platestack.bukkit.scanner.mappings.Mappings
+import org.platestack.bukkit.scanner.writeAtomically
+import org.platestack.bukkit.scanner.structure.*
+import java.io.*
+import java.math.BigInteger
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+import java.util.*
+import java.util.zip.CRC32
+
+/**
+ * A versioned binary snapshot of a fully built [RemapEnvironment].
+ *
+ * The snapshot keeps the identity of every shared change object, so renames shared by overridden methods, nested
+ * classes and moved packages still point to the same instances after being loaded.
+ *
+ * The payload is protected by a CRC32 checksum and it's written to a temporary file which is atomically moved over
+ * the previous snapshot, a crash while writing can never leave a corrupted snapshot behind.
+ *
+ * The descriptor types which were not resolved yet are kept as class names, they are resolved by the loaded
+ * environment when requested, so writing a snapshot doesn't scan them.
+ *
+ * The parent environment is not part of the snapshot, the structures and class changes which are registered to it are
+ * written as references to their class names and are resolved by the parent which is given when the snapshot is read.
+ * References which that parent can't resolve are loaded as partial structures which keep the original names.
+ */
+object RemapEnvironmentSnapshot {
+    private const val MAGIC = 0x50535245 // PSRE
+
+    /**
+     * Must be incremented every time the binary layout changes
+     */
+    const val FORMAT_VERSION = 4
+
+    private const val END = 0
+    private const val PACKAGE_CHANGE = 1
+    private const val PACKAGE_MOVE = 2
+    private const val CLASS_CHANGE = 3
+    private const val CLASS_STRUCTURE = 4
+    private const val FIELD_CHANGE = 5
+    private const val METHOD_CHANGE = 6
+    private const val FIELD_STRUCTURE = 7
+    private const val METHOD_STRUCTURE = 8
+    private const val CLASS_CHANGE_REFERENCE = 9
+    private const val CLASS_STRUCTURE_REFERENCE = 10
+
+    /**
+     * Written instead of a class change reference by descriptors whose type was not resolved, followed by the class name
+     */
+    private const val UNRESOLVED_TYPE = -2
+
+    /**
+     * Identifies the inputs which were used to build a snapshot. A snapshot is only loaded when its key is equals to the expected key.
+     * @property inputsHash A hash of the mappings or of their raw sources used to build the environment, see [hash]
+     * @property base The fingerprints of the base environments which were the parents of the environment while it
+     * was built, or `none`. The base structures are not part of the snapshot but the built structures refer to them.
+     */
+    data class Key(val minecraftVersion: String, val bukkitVersion: String, val packageVersion: String, val inputsHash: String, val base: String = "none") {
+        /**
+         * A single string which changes whenever any part of the key changes
+         */
+        val fingerprint get() = "$minecraftVersion/$bukkitVersion/$packageVersion/$inputsHash/$base"
+    }
+
+    /**
+     * Computes a stable SHA-1 hash of the given mappings
+     */
+    fun hash(vararg mappings: Mappings): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        OutputStreamWriter(DigestOutputStream(NullOutputStream, digest), Charsets.UTF_8).buffered().use { writer ->
+            mappings.forEach {
+                it.exportSRG(writer)
+                writer.write("\u0000\n")
+            }
+        }
+        return BigInteger(1, digest.digest()).toString(16)
+    }
+
+    /**
+     * Computes a stable SHA-1 hash of the given source fingerprints, see [org.platestack.bukkit.scanner.MappingsProvider.fingerprint]
+     */
+    fun hash(vararg sources: String): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        sources.forEach {
+            digest.update(it.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+        return BigInteger(1, digest.digest()).toString(16)
+    }
+
+    /**
+     * Atomically writes the environment to the given file, replacing any existing snapshot.
+     */
+    fun write(environment: RemapEnvironment, key: Key, file: File) {
+        val payload = Encoder(environment).encode()
+        val crc = CRC32().apply { update(payload) }.value
+
+        file.writeAtomically {
+            DataOutputStream(it).let { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(FORMAT_VERSION)
+                out.writeUTF(key.minecraftVersion)
+                out.writeUTF(key.bukkitVersion)
+                out.writeUTF(key.packageVersion)
+                out.writeUTF(key.inputsHash)
+                out.writeUTF(key.base)
+                out.writeInt(payload.size)
+                out.write(payload)
+                out.writeLong(crc)
+                out.flush()
+            }
+        }
+    }
+
+    /**
+     * Loads a snapshot from the given file.
+     * @param parent The parent of the loaded environment, it resolves the structures which are not part of the snapshot
+     * @return The loaded environment or `null` if the file does not exists or was built from a different key or format version
+     * @throws IOException If the file is corrupted
+     */
+    fun read(file: File, key: Key, parent: RemapEnvironment? = null): RemapEnvironment? {
+        return read(file, parent) { it == key }
+    }
+
+    /**
+     * Reads only the key of a snapshot file.
+     * @return The key or `null` if the file does not exists or has a different format version
+     * @throws IOException If the file is not a snapshot
+     */
+    fun readKey(file: File): Key? {
+        var found: Key? = null
+        read(file, null) { found = it; false }
+        return found
+    }
+
+    private inline fun read(file: File, parent: RemapEnvironment?, accept: (Key) -> Boolean): RemapEnvironment? {
+        if(!file.isFile)
+            return null
+
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            if(input.readInt() != MAGIC)
+                throw IOException("$file is not a remap environment snapshot")
+
+            if(input.readInt() != FORMAT_VERSION)
+                return null
+
+            val found = Key(input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF())
+            if(!accept(found))
+                return null
+
+            val size = input.readInt()
+            if(size < 0)
+                throw IOException("Corrupted snapshot: $file")
+
+            val payload = ByteArray(size)
+            input.readFully(payload)
+            val crc = input.readLong()
+            if(CRC32().apply { update(payload) }.value != crc)
+                throw IOException("Checksum mismatch, the snapshot $file is corrupted")
+
+            return Decoder(DataInputStream(ByteArrayInputStream(payload)), parent).decode()
+        }
+    }
+
+    private object NullOutputStream: OutputStream() {
+        override fun write(b: Int) = Unit
+        override fun write(b: ByteArray, off: Int, len: Int) = Unit
+    }
+
+    private class Encoder(private val environment: RemapEnvironment) {
+        private val strings = LinkedHashMap<String, Int>()
+        private val bytes = ByteArrayOutputStream()
+        private val out = DataOutputStream(bytes)
+
+        private val packageChanges = IdentityHashMap<PackageChange, Int>()
+        private val packageMoves = IdentityHashMap<PackageMove, Int>()
+        private val classChanges = IdentityHashMap<ClassChange, Int>()
+        private val classStructures = IdentityHashMap<ClassStructure, Int>()
+        private val fieldChanges = IdentityHashMap<FieldChange, Int>()
+        private val methodChanges = IdentityHashMap<MethodChange, Int>()
+        private val fieldStructures = IdentityHashMap<FieldStructure, Int>()
+        private val methodStructures = IdentityHashMap<MethodStructure, Int>()
+
+        private val references = Collections.newSetFromMap(IdentityHashMap<ClassStructure, Boolean>())
+        private val visiting = Collections.newSetFromMap(IdentityHashMap<ClassStructure, Boolean>())
+        private val pending = ArrayDeque<ClassStructure>()
+
+        private fun string(value: String) = out.writeInt(strings.getOrPut(value) { strings.size })
+
+        private fun nullable(value: Boolean?) = out.writeByte(when(value) { null -> 0; false -> 1; true -> 2 })
+
+        private fun isInherited(structure: ClassStructure): Boolean {
+            val parent = environment.parent ?: return false
+            val id = structure.`class`.from
+            return environment.classes[id] !== structure && parent[id] === structure
+        }
+
+        private fun isInherited(change: ClassChange): Boolean {
+            val parent = environment.parent ?: return false
+            return environment.classes[change.from]?.`class` !== change && parent[change.from]?.`class` === change
+        }
+
+        private fun write(change: PackageChange?): Int {
+            if(change == null) return -1
+            packageChanges[change]?.let { return it }
+            val parent = write(change.parent)
+            out.writeByte(PACKAGE_CHANGE)
+            out.writeInt(parent)
+            string(change.name.from)
+            string(change.name.to)
+
+            val id = packageChanges.size
+            packageChanges[change] = id
+
+            // The target is written after the registration because it may refer to this change
+            write(change.moveTo)
+            return id
+        }
+
+        private fun write(move: PackageMove): Int {
+            packageMoves[move]?.let { return it }
+            val old = write(move.old)
+            val new = write(move.new)
+            out.writeByte(PACKAGE_MOVE)
+            out.writeInt(old)
+            out.writeInt(new)
+
+            val id = packageMoves.size
+            packageMoves[move] = id
+            return id
+        }
+
+        private fun write(change: ClassChange?): Int {
+            if(change == null) return -1
+            classChanges[change]?.let { return it }
+            if(isInherited(change)) {
+                out.writeByte(CLASS_CHANGE_REFERENCE)
+                string(change.from.fullName)
+
+                val id = classChanges.size
+                classChanges[change] = id
+                return id
+            }
+
+            val move = write(change.`package`)
+            val parent = write(change.parent)
+            out.writeByte(CLASS_CHANGE)
+            out.writeInt(move)
+            out.writeInt(parent)
+            string(change.name.from)
+            string(change.name.to)
+
+            val id = classChanges.size
+            classChanges[change] = id
+            return id
+        }
+
+        private fun write(structure: ClassStructure?): Int {
+            if(structure == null) return -1
+            classStructures[structure]?.let { return it }
+            if(isInherited(structure)) {
+                val change = write(structure.`class`)
+                out.writeByte(CLASS_STRUCTURE_REFERENCE)
+                out.writeInt(change)
+
+                val id = classStructures.size
+                classStructures[structure] = id
+                references += structure
+                return id
+            }
+
+            check(visiting.add(structure)) { "Cyclic class hierarchy found at ${structure.`class`.from}" }
+            val change = write(structure.`class`)
+            val `super` = write(structure.`super`)
+            visiting.remove(structure)
+
+            out.writeByte(CLASS_STRUCTURE)
+            out.writeInt(change)
+            out.writeInt(`super`)
+            nullable(structure.isInterface)
+            out.writeBoolean(structure.isFull)
+
+            val id = classStructures.size
+            classStructures[structure] = id
+            pending += structure
+            return id
+        }
+
+        private fun writeDescriptor(descriptor: ParameterDescriptor?) {
+            out.writeBoolean(descriptor != null)
+            if(descriptor != null) {
+                string(descriptor.array)
+                out.writeChar(descriptor.base.toInt())
+                val typeId = descriptor.typeId
+                val type = descriptor.resolvedType
+                if(typeId != null && type == null) {
+                    out.writeInt(UNRESOLVED_TYPE)
+                    string(typeId.fullName)
+                }
+                else {
+                    out.writeInt(write(type))
+                }
+            }
+        }
+
+        private fun write(change: FieldChange): Int {
+            fieldChanges[change]?.let { return it }
+            out.writeByte(FIELD_CHANGE)
+            string(change.name.from)
+            string(change.name.to)
+
+            val id = fieldChanges.size
+            fieldChanges[change] = id
+            return id
+        }
+
+        private fun write(change: MethodChange): Int {
+            methodChanges[change]?.let { return it }
+            val descriptor = change.descriptorType
+            write(descriptor.returnType?.resolvedType)
+            descriptor.parameterTypes.forEach { write(it.resolvedType) }
+
+            out.writeByte(METHOD_CHANGE)
+            string(change.name.from)
+            string(change.name.to)
+            writeDescriptor(descriptor.returnType)
+            out.writeInt(descriptor.parameterTypes.size)
+            descriptor.parameterTypes.forEach { writeDescriptor(it) }
+
+            val id = methodChanges.size
+            methodChanges[change] = id
+            return id
+        }
+
+        private fun write(structure: FieldStructure): Int {
+            fieldStructures[structure]?.let { return it }
+            val change = write(structure.field)
+            val owner = write(structure.owner)
+            write(structure.descriptor?.resolvedType)
+
+            out.writeByte(FIELD_STRUCTURE)
+            out.writeInt(change)
+            out.writeInt(owner)
+            out.writeByte(structure.access.ordinal)
+            nullable(structure.static)
+            writeDescriptor(structure.descriptor)
+
+            val id = fieldStructures.size
+            fieldStructures[structure] = id
+            return id
+        }
+
+        private fun write(structure: MethodStructure): Int {
+            methodStructures[structure]?.let { return it }
+            val change = write(structure.method)
+            val owner = write(structure.owner)
+
+            out.writeByte(METHOD_STRUCTURE)
+            out.writeInt(change)
+            out.writeInt(owner)
+            out.writeByte(structure.access.ordinal)
+            nullable(structure.isStatic)
+
+            val id = methodStructures.size
+            methodStructures[structure] = id
+            return id
+        }
+
+        fun encode(): ByteArray {
+            environment.packages.values.forEach { write(it) }
+            environment.classes.values.forEach { write(it) }
+
+            while(pending.isNotEmpty()) {
+                val structure = pending.poll()
+                structure.interfaces.forEach { write(it) }
+                structure.fields.values.forEach { write(it) }
+                structure.methods.values.forEach { write(it) }
+            }
+
+            out.writeByte(END)
+
+            val structures = arrayOfNulls<ClassStructure>(classStructures.size)
+            classStructures.forEach { structure, id -> structures[id] = structure }
+            structures.forEach { structure ->
+                structure!!
+                if(structure in references)
+                    return@forEach
+
+                out.writeInt(structure.interfaces.size)
+                structure.interfaces.forEach { out.writeInt(write(it)) }
+
+                out.writeInt(structure.fields.size)
+                structure.fields.forEach { (id, field) ->
+                    string(id.name)
+                    out.writeInt(write(field))
+                }
+
+                out.writeInt(structure.methods.size)
+                structure.methods.forEach { (id, method) ->
+                    string(id.name)
+                    string(id.descriptor)
+                    out.writeInt(write(method))
+                }
+            }
+
+            val changes = arrayOfNulls<PackageChange>(packageChanges.size)
+            packageChanges.forEach { change, id -> changes[id] = change }
+            changes.forEach { out.writeInt(write(it!!.moveTo)) }
+
+            out.writeInt(environment.packages.size)
+            environment.packages.forEach { (id, move) ->
+                string(id.fullName)
+                out.writeInt(write(move))
+            }
+
+            out.writeInt(environment.classes.size)
+            environment.classes.forEach { (id, structure) ->
+                string(id.fullName)
+                out.writeInt(write(structure))
+            }
+
+            out.flush()
+
+            val result = ByteArrayOutputStream(bytes.size() + strings.size * 16)
+            DataOutputStream(result).let { header ->
+                header.writeInt(strings.size)
+                strings.keys.forEach { header.writeUTF(it) }
+                header.flush()
+            }
+            bytes.writeTo(result)
+            return result.toByteArray()
+        }
+    }
+
+    private class Decoder(private val input: DataInputStream, parent: RemapEnvironment?) {
+        private val strings = Array(input.readInt()) { input.readUTF() }
+
+        private val packageChanges = ArrayList<PackageChange>()
+        private val packageMoves = ArrayList<PackageMove>()
+        private val classChanges = ArrayList<ClassChange>()
+        private val classStructures = ArrayList<ClassStructure>()
+        private val interfaces = ArrayList<MutableSet<ClassStructure>?>()
+        private val fieldChanges = ArrayList<FieldChange>()
+        private val methodChanges = ArrayList<MethodChange>()
+        private val fieldStructures = ArrayList<FieldStructure>()
+        private val methodStructures = ArrayList<MethodStructure>()
+
+        /**
+         * The decoded environment, it also resolves the descriptor types which were not resolved when encoded
+         */
+        private val environment = RemapEnvironment(parent)
+
+        private fun string() = strings[input.readInt()]
+
+        private fun nullable() = when(input.readByte().toInt()) { 0 -> null; 1 -> false; else -> true }
+
+        private fun <T> List<T>.ref() = input.readInt().let { if(it == -1) null else this[it] }
+
+        private fun descriptor(): ParameterDescriptor? {
+            if(!input.readBoolean())
+                return null
+
+            val array = string()
+            val base = input.readChar()
+            val type = input.readInt()
+            if(type == UNRESOLVED_TYPE)
+                return ParameterDescriptor(array, base, ClassIdentifier(string()), environment::typeChange)
+
+            return ParameterDescriptor(array, base, if(type == -1) null else classChanges[type])
+        }
+
+        fun decode(): RemapEnvironment = Projections.batch {
+            records@ while(true) {
+                when(input.readByte().toInt()) {
+                    END -> break@records
+                    PACKAGE_CHANGE -> {
+                        val parent = packageChanges.ref()
+                        packageChanges += PackageChange(parent, parent, PackageName(string(), string()))
+                    }
+                    PACKAGE_MOVE -> packageMoves += PackageMove(packageChanges.ref()!!, packageChanges.ref()!!)
+                    CLASS_CHANGE -> classChanges += ClassChange(packageMoves.ref()!!, classChanges.ref(), ClassName(string(), string()))
+                    CLASS_STRUCTURE -> {
+                        val change = classChanges.ref()!!
+                        val `super` = classStructures.ref()
+                        val isInterface = nullable()
+                        val interfaceSet = linkedSetOf<ClassStructure>()
+                        classStructures += ClassStructure(change, `super`, isInterface, interfaceSet).also {
+                            it.isFull = input.readBoolean()
+                        }
+                        interfaces += interfaceSet
+                    }
+                    FIELD_CHANGE -> fieldChanges += FieldChange(Name(string(), string()))
+                    METHOD_CHANGE -> {
+                        val name = Name(string(), string())
+                        val returnType = descriptor()
+                        val parameters = List(input.readInt()) { descriptor()!! }
+                        methodChanges += MethodChange(name, MethodDescriptor(returnType, parameters))
+                    }
+                    FIELD_STRUCTURE -> fieldStructures += FieldStructure(
+                            fieldChanges.ref()!!, classChanges.ref()!!, AccessLevel.values()[input.readByte().toInt()],
+                            nullable(), descriptor()
+                    )
+                    METHOD_STRUCTURE -> methodStructures += MethodStructure(
+                            methodChanges.ref()!!, classChanges.ref()!!, AccessLevel.values()[input.readByte().toInt()],
+                            nullable()
+                    )
+                    CLASS_CHANGE_REFERENCE -> {
+                        val id = ClassIdentifier(string())
+                        classChanges += environment.parent?.get(id)?.`class` ?: environment.typeChange(id)
+                    }
+                    CLASS_STRUCTURE_REFERENCE -> {
+                        val change = classChanges.ref()!!
+                        classStructures += environment.parent?.get(change.from) ?: ClassStructure(change, null, null, linkedSetOf())
+                        interfaces.add(null)
+                    }
+                    else -> throw IOException("Unexpected record in the snapshot")
+                }
+            }
+
+            classStructures.forEachIndexed { index, structure ->
+                val interfaceSet = interfaces[index] ?: return@forEachIndexed
+                repeat(input.readInt()) {
+                    interfaceSet.add(classStructures.ref()!!)
+                }
+
+                repeat(input.readInt()) {
+                    structure.fields[FieldIdentifier(string())] = fieldStructures.ref()!!
+                }
+
+                repeat(input.readInt()) {
+                    structure.methods[MethodIdentifier(string(), string())] = methodStructures.ref()!!
+                }
+            }
+
+            packageChanges.forEach {
+                it.moveTo = packageChanges.ref()
+            }
+
+            repeat(input.readInt()) {
+                environment[PackageIdentifier(string())] = packageMoves.ref()!!
+            }
+
+            repeat(input.readInt()) {
+                environment[ClassIdentifier(string())] = classStructures.ref()!!
+            }
+
+            environment
+        }
+    }
+}
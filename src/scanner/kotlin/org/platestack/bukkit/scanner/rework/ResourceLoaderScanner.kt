@@ -21,5 +21,10 @@ import org.platestack.bukkit.scanner.structure.ClassIdentifier
 class ResourceLoaderScanner(val resourceLoader: ResourceLoader) : InputStreamScanner {
     constructor(classLoader: ClassLoader) : this(ClassResourceLoader(classLoader))
 
+    override val summaries = ClassSummaryCache()
+    override var parser = ClassSummary.Parser.ASM
+
     override fun getColdStream(classId: ClassIdentifier) = resourceLoader.getResourceAsStream(classId.fullName+".class")
+
+    override fun getColdEntry(classId: ClassIdentifier) = (resourceLoader as? JarResourceLoader)?.getEntry(classId.fullName+".class")
 }
@@ -43,13 +43,23 @@ interface ClassScanner {
 
     fun scan(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure?
 
+    /**
+     * Reads the given classes ahead of their scans, in the most efficient order for this scanner.
+     *
+     * This is only a hint, the classes are still scanned by the other methods and errors are reported by them.
+     * Scanners which don't read class files don't need to do anything.
+     *
+     * @param parallelism How many threads may parse the classes while they are read
+     */
+    fun prefetch(classIds: Collection<ClassIdentifier>, parallelism: Int = 1) {}
+
     fun provide(environment: RemapEnvironment, packageId: PackageIdentifier): PackageMove {
         return environment[packageId] ?: PackageMove(packageId.toChange { provide(environment, it).old })
     }
 
     fun provide(environment: RemapEnvironment, classId: ClassIdentifier, fullParents: Boolean = false): ClassStructure? {
-        val structure = environment[classId] ?: scan(environment, classId, fullParents)?.also {
-            environment[classId] = it
+        val structure = environment[classId] ?: scan(environment, classId, fullParents)?.let {
+            environment.register(classId, it)
         } ?: return null
 
         if(!fullParents || structure.isFull)
@@ -69,28 +79,19 @@ interface ClassScanner {
         val structure = provide(environment, classId, true) ?: return null
         structure.let { if(it.isFull) return it }
         val full = fullScan(environment, classId) ?: return null
-        full.fields.forEach {
-            structure.fields.putIfAbsent(it.key, it.value)
-        }
-
-        full.methods.forEach {
-            structure.methods.putIfAbsent(it.key, it.value)
-        }
-
-        structure.isInterface = full.isInterface
-        structure.isFull = true
+        structure.upgrade(full)
         return structure
     }
 
     fun provide(environment: RemapEnvironment, classId: ClassIdentifier, fieldId: FieldIdentifier): FieldStructure? {
-        return environment[classId]?.fields?.get(fieldId) ?: scan(environment, classId, fieldId)?.also {
-            checkNotNull(provide(environment, classId)).fields[fieldId] = it
+        return environment[classId]?.fields?.get(fieldId) ?: scan(environment, classId, fieldId)?.let {
+            checkNotNull(provide(environment, classId)).fields.putIfAbsent(fieldId, it) ?: it
         }
     }
 
     fun provide(environment: RemapEnvironment, classId: ClassIdentifier, methodId: MethodIdentifier): MethodStructure? {
-        return environment[classId]?.methods?.get(methodId) ?: scan(environment, classId, methodId)?.also {
-            checkNotNull(provide(environment, classId)).methods[methodId] = it
+        return environment[classId]?.methods?.get(methodId) ?: scan(environment, classId, methodId)?.let {
+            checkNotNull(provide(environment, classId)).methods.putIfAbsent(methodId, it) ?: it
         }
     }
 
@@ -147,10 +148,8 @@ interface ClassScanner {
                                 val fake = ClassStructure(id.toChange(
                                         packageProvider = { scanner.provide(environment, it) },
                                         parentProvider = { (scanner.provide(environment, it, fullParents) ?: createFakeIntermediary(it)).`class` }
-                                ), null, null, emptySet()).also {
-                                    environment[it.`class`.from] = it
-                                }
-                                fake
+                                ), null, null, emptySet())
+                                environment.register(fake.`class`.from, fake)
                             }
                             else {
                                 error("Referred class not found: $id ; Referred by: $classId")
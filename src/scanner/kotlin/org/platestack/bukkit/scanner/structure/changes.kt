@@ -26,7 +26,8 @@ interface Change {
  */
 data class FieldChange(val name: Name): Change {
     override val from = FieldIdentifier(name.from)
-    override val to get() = FieldIdentifier(name.to)
+    @Volatile private var projection: Projection<FieldIdentifier>? = null
+    override val to get() = project(projection, { projection = it }) { FieldIdentifier(name.to) }
     override fun toString() = "$from -> $to"
 }
 
@@ -35,7 +36,8 @@ data class FieldChange(val name: Name): Change {
  */
 data class MethodChange(val name: Name, val descriptorType: MethodDescriptor) : Change {
     override val from = MethodIdentifier(name.from, descriptorType.from)
-    override val to get() = MethodIdentifier(name.to, descriptorType.to)
+    @Volatile private var projection: Projection<MethodIdentifier>? = null
+    override val to get() = project(projection, { projection = it }) { MethodIdentifier(name.to, descriptorType.to) }
     override fun toString() = "$from -> $to"
 }
 
@@ -44,10 +46,24 @@ data class MethodChange(val name: Name, val descriptorType: MethodDescriptor) :
  * @property parent The parent where this class resides
  * @property name The actual name of this package. Must contains not contains any separation character!
  */
-data class PackageChange(val parent: PackageChange?, var moveTo: PackageChange?, val name: PackageName) : Change {
+data class PackageChange(val parent: PackageChange?, private var target: PackageChange?, val name: PackageName) : Change {
     override val from: PackageIdentifier = PackageIdentifier(parent?.from, name.from)
+
+    /**
+     * The package which will contain this package after the transformation
+     */
+    var moveTo: PackageChange?
+        get() = target
+        set(value) {
+            if(target === value)
+                return
+            target = value
+            Projections.invalidate()
+        }
+
+    @Volatile private var projection: Projection<PackageIdentifier>? = null
     @Suppress("RecursivePropertyAccessor")
-    override val to: PackageIdentifier get() = PackageIdentifier(moveTo?.to, name.to)
+    override val to: PackageIdentifier get() = project(projection, { projection = it }) { PackageIdentifier(moveTo?.to, name.to) }
     override fun toString() = "$from -> $to"
 }
 
@@ -72,7 +88,16 @@ interface Move {
 /**
  * A migration from one package to another
  */
-data class PackageMove(override val old: PackageChange, override var new: PackageChange = old) : Move {
+data class PackageMove(override val old: PackageChange, private var target: PackageChange = old) : Move {
+    override var new: PackageChange
+        get() = target
+        set(value) {
+            if(target === value)
+                return
+            target = value
+            Projections.invalidate()
+        }
+
     override val from get() = old.from
     override val to get() = new.to
     override fun toString() = "$from -> $to"
@@ -84,9 +109,22 @@ data class PackageMove(override val old: PackageChange, override var new: Packag
  * @property parent The class which nests this class or is referred by this class name before the actual name
  * @property name The actual name of this class. Must contains the separation character.
  */
-data class ClassChange(val `package`: PackageMove, var parent: ClassChange?, val name: ClassName) : Change {
+data class ClassChange(val `package`: PackageMove, private var outer: ClassChange?, val name: ClassName) : Change {
     override val from: ClassIdentifier = ClassIdentifier(parent?.from?.`package` ?: `package`.from, parent?.from, name.from)
+
+    var parent: ClassChange?
+        get() = outer
+        set(value) {
+            if(outer === value)
+                return
+            outer = value
+            Projections.invalidate()
+        }
+
+    @Volatile private var projection: Projection<ClassIdentifier>? = null
     @Suppress("RecursivePropertyAccessor")
-    override val to: ClassIdentifier get() = ClassIdentifier(parent?.to?.`package` ?: `package`.to, parent?.to, name.to)
+    override val to: ClassIdentifier get() = project(projection, { projection = it }) {
+        ClassIdentifier(parent?.to?.`package` ?: `package`.to, parent?.to, name.to)
+    }
     override fun toString() = "$from -> $to"
 }
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.structure
+
+/**
+ * A hand written scanner for JVM descriptors, which validates and finds the type boundaries in a single pass
+ * without regular expressions or intermediary strings.
+ */
+internal object DescriptorScanner {
+    /**
+     * Finds the end of the field type which starts at the given index
+     * @return The index after the type or `-1` if there's no valid field type at the index
+     */
+    fun fieldTypeEnd(descriptor: String, start: Int): Int {
+        val length = descriptor.length
+        var index = start
+        while(index < length && descriptor[index] == '[')
+            index++
+
+        if(index >= length)
+            return -1
+
+        return when(descriptor[index]) {
+            'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z' -> index + 1
+            'L' -> descriptor.indexOf(';', index + 1).let { if(it <= index + 1) -1 else it + 1 }
+            else -> -1
+        }
+    }
+
+    /**
+     * Checks if the string is a valid field descriptor, like `I` or `[Ljava/lang/String;`
+     */
+    fun isField(descriptor: String) = fieldTypeEnd(descriptor, 0) == descriptor.length
+
+    /**
+     * Finds the index of the closing parenthesis of a method descriptor, validating the parameters
+     * @return The index of `)` or `-1` if the descriptor doesn't starts with valid parameters
+     */
+    fun parametersEnd(descriptor: String): Int {
+        if(descriptor.isEmpty() || descriptor[0] != '(')
+            return -1
+
+        var index = 1
+        while(index < descriptor.length && descriptor[index] != ')') {
+            index = fieldTypeEnd(descriptor, index)
+            if(index < 0)
+                return -1
+        }
+
+        return if(index < descriptor.length) index else -1
+    }
+
+    /**
+     * Checks if the string is a valid method descriptor, like `()V` or `(IJ)Ljava/lang/String;`
+     */
+    fun isMethod(descriptor: String): Boolean {
+        val end = parametersEnd(descriptor)
+        if(end < 0)
+            return false
+
+        val returnStart = end + 1
+        return (returnStart == descriptor.length - 1 && descriptor[returnStart] == 'V')
+                || fieldTypeEnd(descriptor, returnStart) == descriptor.length
+    }
+}
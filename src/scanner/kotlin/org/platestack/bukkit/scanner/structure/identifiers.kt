@@ -18,7 +18,7 @@
 
 package org.platestack.bukkit.scanner.structure
 
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 interface Identifier
 
@@ -32,8 +32,6 @@ data class FieldIdentifier(val name: String): Identifier, Comparable<FieldIdenti
     override fun compareTo(other: FieldIdentifier) = name.compareTo(other.name)
 }
 
-private val validMethod = Regex("""^\((\)V|(\[*([BCDFIJSZ]|L[^;]+;))*\)(V|\[*([BCDFIJSZ]|L[^;]+;)))$""")
-
 /**
  * A method name and its descriptor
  */
@@ -41,9 +39,10 @@ data class MethodIdentifier(val name: String, val descriptor: String): Identifie
     override fun toString() = "$name $descriptor"
 
     init {
-        check(validMethod.matches(descriptor)) { "Invalid method descriptor for $name: $descriptor" }
+        check(DescriptorScanner.isMethod(descriptor)) { "Invalid method descriptor for $name: $descriptor" }
     }
 
+    @JvmOverloads
     fun toChange(classSupplier: (ClassIdentifier) -> ClassChange = { it.toChange() }) =
             MethodChange(Name(name), MethodDescriptor(descriptor, classSupplier))
 
@@ -52,6 +51,11 @@ data class MethodIdentifier(val name: String, val descriptor: String): Identifie
 
 /**
  * A disassembled package name
+ *
+ * Package identifiers are canonical, every package name is represented by a single instance, so they are compared by
+ * reference. Instances are created only through the companion object, the root packages are kept by the companion
+ * and the other packages by their parents, so parsing a full name walks the tree.
+ *
  * @property parent The parent package which this package resides
  * @property name This package name, without any separator character
  * @property fullName Name including the parent's name and '/' separators.
@@ -60,17 +64,59 @@ data class MethodIdentifier(val name: String, val descriptor: String): Identifie
  *
  * @property prefix The same as [fullName] but with a trailing '/'
  */
-data class PackageIdentifier constructor(val parent: PackageIdentifier?, val name: String): Identifier, Comparable<PackageIdentifier> {
-    constructor(parentName: String, name: String): this(if(parentName.isBlank()) null else PackageIdentifier(parentName), name)
-    constructor(fullName: String): this(fullName.substringBeforeLast('/', ""), fullName.substringAfterLast('/'))
+class PackageIdentifier private constructor(val parent: PackageIdentifier?, val name: String, val fullName: String): Identifier, Comparable<PackageIdentifier> {
+    companion object Pool {
+        private val roots = ConcurrentHashMap<String, PackageIdentifier>()
 
-    init {
-        check(name.isNotBlank() || parent == null) { "Package name is blank but has a parent!" }
-        check('/' !in name) { "Package can't contains '/'" }
-        check('.' !in name) { "Package can't contains '.'" }
+        @JvmName("create") @JvmStatic
+        operator fun invoke(parent: PackageIdentifier?, name: String): PackageIdentifier {
+            val siblings = parent?.children() ?: roots
+            siblings[name]?.let { return it }
+
+            check(name.isNotBlank() || parent == null) { "Package name is blank but has a parent!" }
+            check('/' !in name) { "Package can't contains '/'" }
+            check('.' !in name) { "Package can't contains '.'" }
+
+            val created = PackageIdentifier(parent, name, if(parent != null) parent.prefix + name else name)
+            return siblings.putIfAbsent(name, created) ?: created
+        }
+
+        @JvmName("create") @JvmStatic
+        operator fun invoke(parentName: String, name: String) = PackageIdentifier(if(parentName.isBlank()) null else PackageIdentifier(parentName), name)
+
+        @JvmName("create") @JvmStatic
+        operator fun invoke(fullName: String): PackageIdentifier {
+            var parent: PackageIdentifier? = null
+            var start = 0
+            while(true) {
+                val end = fullName.indexOf('/', start)
+                if(end < 0)
+                    return PackageIdentifier(parent, fullName.substring(start))
+
+                parent = PackageIdentifier(parent, fullName.substring(start, end))
+                start = end + 1
+            }
+        }
+    }
+
+    /**
+     * The sub-packages of this package, created on the first sub-package
+     */
+    @Volatile private var children: ConcurrentHashMap<String, PackageIdentifier>? = null
+
+    /**
+     * The top level classes of this package, created on the first class
+     */
+    @Volatile private var classes: ConcurrentHashMap<String, ClassIdentifier>? = null
+
+    private fun children() = children ?: synchronized(this) {
+        children ?: ConcurrentHashMap<String, PackageIdentifier>(4).also { children = it }
+    }
+
+    internal fun classes() = classes ?: synchronized(this) {
+        classes ?: ConcurrentHashMap<String, ClassIdentifier>().also { classes = it }
     }
 
-    val fullName = if(parent != null) "$parent$name" else name
     val prefix = if(name.isBlank()) "" else "$fullName/"
 
     fun toChange(parentSupplier: (PackageIdentifier) -> PackageChange? = {null}): PackageChange {
@@ -78,8 +124,8 @@ data class PackageIdentifier constructor(val parent: PackageIdentifier?, val nam
         return PackageChange(parentChange, parentChange, PackageName(name))
     }
 
-    // Caches the hash code as this class is immutable and kinda complex
-    private val hashCode by lazy { Objects.hash(parent, name) }
+    // Equality is the identity, the hash is derived from the name to keep the hash based iteration orders stable between runs
+    private val hashCode = fullName.hashCode()
     override fun hashCode() = hashCode
     override fun toString() = prefix
     override fun compareTo(other: PackageIdentifier) = prefix.compareTo(other.prefix)
@@ -107,19 +153,25 @@ data class PackageIdentifier constructor(val parent: PackageIdentifier?, val nam
  * @property className The actual name of this class. Must contains the separation character.
  * @property fullSimpleName The combination of the parent's name with this name, excluding the package name
  * @property fullName The full name including the package and the parent name.
+ *
+ * Class identifiers are canonical like the [PackageIdentifier], the nested classes are kept by their parents and the
+ * top level classes by their packages, so identifiers are compared by reference and parsing a full name walks the
+ * package and the class trees.
  */
-data class ClassIdentifier(val `package`: PackageIdentifier, val parent: ClassIdentifier?, val className: String): Identifier, Comparable<ClassIdentifier> {
+class ClassIdentifier private constructor(val `package`: PackageIdentifier, val parent: ClassIdentifier?, val className: String, val fullName: String): Identifier, Comparable<ClassIdentifier> {
 
-    init {
-        require(className.isNotBlank()) { "The class name can't be empty" }
-        require('.' !in className) { "Class name can't contains '.'" }
-        require('/' !in className) { "Class name can't contains '/'" }
-        require(parent == null || parent.`package` == `package`) { "The parent class has a different package than this! This: $this ; Parent: $parent" }
+    /**
+     * The classes which are nested in this class, created on the first nested class
+     */
+    @Volatile private var nested: ConcurrentHashMap<String, ClassIdentifier>? = null
+
+    private fun nested() = nested ?: synchronized(this) {
+        nested ?: ConcurrentHashMap<String, ClassIdentifier>(4).also { nested = it }
     }
 
-    val fullSimpleName:String = (parent?.fullSimpleName ?: "") + className
-    val fullName: String = `package`.prefix + fullSimpleName
+    val fullSimpleName: String get() = fullName.substring(`package`.prefix.length)
 
+    @JvmOverloads
     fun toChange(packageProvider: (PackageIdentifier) -> PackageMove = { PackageMove(it.toChange()) },
                  parentProvider: (ClassIdentifier) -> ClassChange? = { null }
     ): ClassChange {
@@ -131,24 +183,35 @@ data class ClassIdentifier(val `package`: PackageIdentifier, val parent: ClassId
     }
 
     companion object Builder {
+        @JvmName("create") @JvmStatic
+        operator fun invoke(`package`: PackageIdentifier, parent: ClassIdentifier?, className: String): ClassIdentifier {
+            val siblings = parent?.nested() ?: `package`.classes()
+            siblings[className]?.let { return it }
+
+            require(className.isNotBlank()) { "The class name can't be empty" }
+            require('.' !in className) { "Class name can't contains '.'" }
+            require('/' !in className) { "Class name can't contains '/'" }
+            require(parent == null || parent.`package` == `package`) { "The parent class has a different package than this! Package: ${`package`} ; Parent: $parent" }
+
+            val created = ClassIdentifier(`package`, parent, className, (parent?.fullName ?: `package`.prefix) + className)
+            return siblings.putIfAbsent(className, created) ?: created
+        }
+
         @JvmName("create") @JvmStatic
         operator fun invoke(`package`: PackageIdentifier, compositeName: String): ClassIdentifier {
             require(compositeName.isNotBlank()) { "The composite name can't be empty" }
 
+            // Every '$' starts a new part, except a leading '$' which is part of the first name
             var parent: ClassIdentifier? = null
-            val parts = compositeName.split('$').mapIndexedTo(ArrayDeque()) { index, part ->
-                if(index == 0) part
-                else '$'+part
+            var start = 0
+            while(true) {
+                val end = compositeName.indexOf('$', start + 1)
+                if(end < 0)
+                    return ClassIdentifier(`package`, parent, compositeName.substring(start))
+
+                parent = ClassIdentifier(`package`, parent, compositeName.substring(start, end))
+                start = end
             }
-
-            if(parts.peek().isEmpty())
-                parts.remove()
-
-            parts.forEach {
-                parent = ClassIdentifier(`package`, parent, it)
-            }
-
-            return checkNotNull(parent)
         }
 
         @JvmName("create") @JvmStatic
@@ -171,8 +234,8 @@ data class ClassIdentifier(val `package`: PackageIdentifier, val parent: ClassId
         }
     }
 
-    // Caches the hash code as this class is immutable and kinda complex
-    private val hashCode by lazy { Objects.hash(`package`, parent, className) }
+    // Equality is the identity, the hash is derived from the name to keep the hash based iteration orders stable between runs
+    private val hashCode = fullName.hashCode()
     override fun hashCode() = hashCode
     override fun toString() = fullName
     override fun compareTo(other: ClassIdentifier) = fullName.compareTo(other.fullName)
@@ -0,0 +1,90 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.structure
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The version stamp of all mutable names and moves.
+ *
+ * The `to` projections of the changes are cached and reused while the stamp is unchanged, any change to a target
+ * name, a package move or a parent class increments the stamp, invalidating all cached projections at once.
+ * The names are only changed while the mappings are applied, after that the projections are never recomputed.
+ *
+ * Setting a value which is equal to the current one doesn't invalidate anything, and the writes done inside a [batch]
+ * increment the stamp only once, when the batch ends.
+ */
+internal object Projections {
+    private val stamp = AtomicInteger()
+
+    /**
+     * The batch which is running on the current thread, if any
+     */
+    private val batches = ThreadLocal<Batch>()
+
+    private class Batch {
+        var invalidated = false
+    }
+
+    val version get() = stamp.get()
+
+    fun invalidate() {
+        val batch = batches.get()
+        if(batch != null)
+            batch.invalidated = true
+        else
+            stamp.incrementAndGet()
+    }
+
+    /**
+     * Runs the block deferring all invalidations made by the current thread to the end of the block.
+     *
+     * The projections read inside the block may not reflect the writes made by the block itself, so it must be used only
+     * to build changes which are not projected before the batch ends, like when decoding a snapshot.
+     */
+    fun <R> batch(block: () -> R): R {
+        if(batches.get() != null)
+            return block()
+
+        val batch = Batch()
+        batches.set(batch)
+        try {
+            return block()
+        }
+        finally {
+            batches.remove()
+            if(batch.invalidated)
+                stamp.incrementAndGet()
+        }
+    }
+}
+
+/**
+ * A projected value and the [Projections.version] which was current before it was computed
+ */
+internal class Projection<out T>(val value: T, val version: Int)
+
+/**
+ * Returns the cached projection when it's still valid or computes and stores a new one
+ */
+internal inline fun <T> project(cached: Projection<T>?, store: (Projection<T>) -> Unit, compute: () -> T): T {
+    val version = Projections.version
+    if(cached != null && cached.version == version)
+        return cached.value
+
+    return compute().also { store(Projection(it, version)) }
+}
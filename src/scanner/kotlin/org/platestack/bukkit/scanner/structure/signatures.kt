@@ -16,6 +16,8 @@
 
 package org.platestack.bukkit.scanner.structure
 
+import java.util.concurrent.ConcurrentHashMap
+
 private fun checkNotEmpty(name: String) = check(name.isNotBlank()) { "A name can't be blank" }
 
 class ClassName(from: String, to: String = from): Name(from, to, {
@@ -41,7 +43,10 @@ open class Name protected constructor(override final val from: String, to: Strin
 
     override final var to = to; set(value) {
         validator(value)
+        if(field == value)
+            return
         field = value
+        Projections.invalidate()
     }
 
     fun component1() = from
@@ -71,65 +76,186 @@ open class Name protected constructor(override final val from: String, to: Strin
     }
 }
 
-private val arrayPattern = Regex("^\\[+")
-
 /**
  * The JVM descriptor which indicates a field or parameter type
+ *
+ * Descriptors of primitive types and primitive arrays don't depend on any class, so the parser shares a single
+ * instance for each of them.
+ *
+ * The object types of parsed descriptors are resolved lazily, the class supplier is called only when the [type] or the
+ * transformed descriptor is requested, so parsing a descriptor doesn't pull the classes which it refers. Descriptors are
+ * compared by their original names, so comparing them doesn't resolve anything either.
+ *
  * @property array If this descriptor begins with `[`
  * @property base The primitive field type: `BCDFIJSZ` or `L` for object types.
  * @property type The object type represented by this descriptor.
  * @property from The original descriptor
  * @property to The descriptor after the transformation
  */
-data class ParameterDescriptor(val array: String, val base: Char, val type: ClassChange?) : Change {
-    constructor(signature: String, classSupplier: (ClassIdentifier) -> ClassChange): this(StringBuilder(signature), classSupplier)
-    private constructor(b: StringBuilder, classSupplier: (ClassIdentifier) -> ClassChange)
-            : this(
-            arrayPattern.find(b)?.value?.let { b.delete(0, it.length); it } ?: "",
-            b.first(), b.first().let { if(it == 'L') classSupplier(ClassIdentifier(b.substring(1, b.length - 1))) else null }
-    )
+class ParameterDescriptor private constructor(
+        val array: String, val base: Char, internal val typeId: ClassIdentifier?,
+        @Volatile private var resolved: ClassChange?, @Volatile private var classSupplier: ((ClassIdentifier) -> ClassChange)?
+) : Change {
+    constructor(array: String, base: Char, type: ClassChange?): this(array, base, type?.from, type, null)
+
+    /**
+     * Creates an object type descriptor which is resolved by the class supplier when its type is requested
+     */
+    internal constructor(array: String, base: Char, typeId: ClassIdentifier, classSupplier: (ClassIdentifier) -> ClassChange):
+            this(array, base, typeId, null, classSupplier)
+
+    companion object Parser {
+        private const val BASES = "BCDFIJSZ"
+        private const val SHARED_DIMENSIONS = 4
+
+        private val arrays = Array(256) { "[".repeat(it) }
+        private val primitives = Array(SHARED_DIMENSIONS) { dimensions ->
+            Array(BASES.length) { ParameterDescriptor(arrays[dimensions], BASES[it], null) }
+        }
+
+        /**
+         * Parses a field descriptor
+         * @throws IllegalStateException If the signature is not a valid field descriptor
+         */
+        @JvmName("parse") @JvmStatic
+        operator fun invoke(signature: String, classSupplier: (ClassIdentifier) -> ClassChange): ParameterDescriptor {
+            val end = DescriptorScanner.fieldTypeEnd(signature, 0)
+            check(end == signature.length) { "Invalid field descriptor: $signature" }
+            return parse(signature, 0, end, classSupplier)
+        }
+
+        /**
+         * Creates the descriptor of the field type which is between the given indexes, the type must be already validated
+         */
+        internal fun parse(signature: String, start: Int, end: Int, classSupplier: (ClassIdentifier) -> ClassChange): ParameterDescriptor {
+            var index = start
+            while(signature[index] == '[')
+                index++
+
+            val dimensions = index - start
+            check(dimensions < arrays.size) { "Too many array dimensions: $signature" }
+            val base = signature[index]
+            if(base == 'L')
+                return ParameterDescriptor(arrays[dimensions], base, ClassIdentifier(signature.substring(index + 1, end - 1)), null, classSupplier)
+
+            return if(dimensions < SHARED_DIMENSIONS) primitives[dimensions][BASES.indexOf(base)]
+            else ParameterDescriptor(arrays[dimensions], base, null)
+        }
+    }
 
     init {
         check(base in "BCDFIJSZL") { "Unexpected primitive type: $base" }
-        check((type == null && base != 'L') || (base == 'L' && type != null)) { "Object types must declare the base to 'L' and the referred type." }
+        check((typeId == null && base != 'L') || (base == 'L' && typeId != null)) { "Object types must declare the base to 'L' and the referred type." }
+    }
+
+    val type: ClassChange? get() {
+        resolved?.let { return it }
+        val typeId = typeId ?: return null
+        return synchronized(this) {
+            resolved ?: checkNotNull(classSupplier)(typeId).also {
+                resolved = it
+                classSupplier = null
+            }
+        }
+    }
+
+    /**
+     * The type if it was already resolved, reading it never calls the class supplier
+     */
+    internal val resolvedType: ClassChange? get() = resolved
+
+    override val from = array + base + (typeId?.fullName?.let { it+';' } ?: "")
+    @Volatile private var projection: Projection<String>? = null
+    override val to: String get() {
+        val type = type ?: return from
+        return project(projection, { projection = it }) { array + base + type.to.fullName + ';' }
+    }
+
+    fun component1() = array
+    fun component2() = base
+    fun component3() = type
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is ParameterDescriptor) return false
+        return array == other.array && base == other.base && typeId == other.typeId
+    }
+
+    override fun hashCode(): Int {
+        var result = array.hashCode()
+        result = 31 * result + base.hashCode()
+        result = 31 * result + (typeId?.hashCode() ?: 0)
+        return result
     }
 
-    override val from = array + base + (type?.from?.fullName?.let { it+';' } ?: "")
-    override val to get() = array + base + (type?.to?.fullName?.let { it+';' } ?: "")
     override fun toString() = "$from -> $to"
 }
 
-private val signaturePattern = Regex("\\[*([BCDFIJSZ]|L[^;]+;)")
-
 /**
  * The JVM method descriptor
+ *
+ * Descriptors which refers only to primitive types are shared by the parser.
+ *
  * @property returnType The type of the object returned by the represented function. `null` indicates `V` *(`void`)*
  * @property parameterTypes The list of parameters required by the represented method.
  * @property from The original descriptor
  * @property to The descriptor after the transformation
  */
 data class MethodDescriptor(val returnType: ParameterDescriptor?, val parameterTypes: List<ParameterDescriptor>) : Change {
-    constructor(signature: String, classSupplier: (ClassIdentifier)-> ClassChange)
-            : this(
-                    if("()V" == signature)  null
-                    else signature.substringAfterLast(')').let {
-                        if(it == "V") null
-                        else ParameterDescriptor(it, classSupplier)
-                    },
-
-                    if("()V" == signature || signature.startsWith("()")) emptyList()
-                    else signaturePattern.findAll(signature.substringBeforeLast(')').substring(1))
-                            .map { ParameterDescriptor(it.value, classSupplier) }
-                            .toList()
-
-    )
+    companion object Parser {
+        private val primitives = ConcurrentHashMap<String, MethodDescriptor>()
+
+        /**
+         * Parses a method descriptor in a single pass
+         * @throws IllegalStateException If the signature is not a valid method descriptor
+         */
+        @JvmName("parse") @JvmStatic
+        operator fun invoke(signature: String, classSupplier: (ClassIdentifier)-> ClassChange): MethodDescriptor {
+            primitives[signature]?.let { return it }
+
+            val parametersEnd = DescriptorScanner.parametersEnd(signature)
+            check(parametersEnd > 0) { "Invalid method descriptor: $signature" }
+
+            var shared = true
+            val parameters: List<ParameterDescriptor> = if(parametersEnd == 1) emptyList() else ArrayList<ParameterDescriptor>(4).also { list ->
+                var index = 1
+                while(index < parametersEnd) {
+                    val end = DescriptorScanner.fieldTypeEnd(signature, index)
+                    val parameter = ParameterDescriptor.parse(signature, index, end, classSupplier)
+                    if(parameter.base == 'L')
+                        shared = false
+                    list += parameter
+                    index = end
+                }
+            }
+
+            val returnStart = parametersEnd + 1
+            val returnType =
+                    if(returnStart == signature.length - 1 && signature[returnStart] == 'V') null
+                    else {
+                        val end = DescriptorScanner.fieldTypeEnd(signature, returnStart)
+                        check(end == signature.length) { "Invalid method descriptor: $signature" }
+                        ParameterDescriptor.parse(signature, returnStart, end, classSupplier).also {
+                            if(it.base == 'L')
+                                shared = false
+                        }
+                    }
+
+            val descriptor = MethodDescriptor(returnType, parameters)
+            return if(shared) primitives.putIfAbsent(signature, descriptor) ?: descriptor else descriptor
+        }
+    }
+
     override val from =
             if(returnType == null && parameterTypes.isEmpty()) "()V"
             else '('+parameterTypes.asSequence().map { it.from }.joinToString("")+')'+(returnType?.from ?: 'V')
 
-    override val to get() =
+    @Volatile private var projection: Projection<String>? = null
+    override val to: String get() =
             if(returnType == null && parameterTypes.isEmpty()) "()V"
-            else '('+parameterTypes.asSequence().map { it.to }.joinToString("")+')'+(returnType?.to ?: 'V')
+            else project(projection, { projection = it }) {
+                '('+parameterTypes.asSequence().map { it.to }.joinToString("")+')'+(returnType?.to ?: 'V')
+            }
 
     override fun toString() = "$from -> $to"
 }
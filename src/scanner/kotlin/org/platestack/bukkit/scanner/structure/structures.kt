@@ -17,6 +17,7 @@
 package org.platestack.bukkit.scanner.structure
 
 import java.lang.reflect.Modifier
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.concurrent.getOrSet
 
 enum class AccessLevel {
@@ -50,13 +51,20 @@ data class FieldStructure(val field: FieldChange, override val owner: ClassChang
     override fun toString() = "${owner.from}#${field.from} -> ${owner.to}#${field.to}"
 }
 
-class ClassStructure private constructor(var isInterface: Boolean?, val interfaces: Set<ClassStructure>) {
+/**
+ * The hierarchy and the members of a class.
+ *
+ * A structure may be partial, containing only the members which were requested so far, and be upgraded to a full
+ * structure later by [upgrade]. The members are kept in concurrent maps and the upgrade is safely published,
+ * any thread which sees [isFull] as `true` also sees all members.
+ */
+class ClassStructure private constructor(@Volatile var isInterface: Boolean?, val interfaces: Set<ClassStructure>) {
     lateinit var `class`: ClassChange; private set
     var `super`: ClassStructure? = null; private set
 
-    val fields: MutableMap<FieldIdentifier, FieldStructure> = sortedMapOf()
-    val methods: MutableMap<MethodIdentifier, MethodStructure> = sortedMapOf()
-    var isFull = false
+    val fields: MutableMap<FieldIdentifier, FieldStructure> = ConcurrentHashMap()
+    val methods: MutableMap<MethodIdentifier, MethodStructure> = ConcurrentHashMap()
+    @Volatile var isFull = false
 
     constructor(`class`: ClassChange, `super`: ClassStructure?, isInterface: Boolean?, interfaces: Set<ClassStructure>): this(isInterface, interfaces) {
         this.`class` = `class`
@@ -64,109 +72,230 @@ class ClassStructure private constructor(var isInterface: Boolean?, val interfac
     }
 
     companion object {
-        private val lock = ThreadLocal<MutableMap<ClassIdentifier, ClassStructure>>()
+        /**
+         * The structures which are being created by the current thread, used to detect cyclic creations
+         */
+        private val loading = ThreadLocal<MutableMap<ClassIdentifier, ClassStructure>>()
+
+        /**
+         * Creates a structure, resolving the parent classes with the structure provider.
+         *
+         * Structures are created concurrently, only the cyclic creations are detected and they are detected per thread.
+         * Threads which create the same class at the same time create different objects, the structure provider and
+         * [org.platestack.bukkit.scanner.rework.RemapEnvironment.register] make sure that only one of them is used.
+         */
         operator fun invoke(
                 id: ClassIdentifier, `super`: ClassIdentifier?, isInterface: Boolean?, interfaces: Set<ClassIdentifier>,
                 packageProvider: ((PackageIdentifier) -> PackageMove)? = null,
                 structureProvider: (ClassIdentifier) -> ClassStructure
         ): ClassStructure {
-            synchronized(lock) {
-                val loading = lock.getOrSet(::mutableMapOf)
-                loading[id]?.let {
-                    System.err.println("Cyclic structure creation from: $loading to $id")
-                    return it
-                }
+            val loading = loading.getOrSet(::mutableMapOf)
+            loading[id]?.let {
+                System.err.println("Cyclic structure creation from: $loading to $id")
+                return it
+            }
 
-                val loadingInterfaces = mutableSetOf<ClassStructure>()
-                val structure = ClassStructure(isInterface, loadingInterfaces)
-                check(loading.put(id, structure) == null) {
-                    "Expected $id to be outside of the loading map"
-                }
+            val loadingInterfaces = mutableSetOf<ClassStructure>()
+            val structure = ClassStructure(isInterface, loadingInterfaces)
+            check(loading.put(id, structure) == null) {
+                "Expected $id to be outside of the loading map"
+            }
 
-                try {
-                    fun ClassIdentifier.create() =
-                            if(packageProvider != null) {
-                                toChange(packageProvider) { structureProvider(it).`class` }
-                            }
-                            else {
-                                toChange { structureProvider(it).`class` }
-                            }
-
-                    structure.`class` = id.create()
-                    structure.`super` = `super`?.let(structureProvider)
-                    loadingInterfaces.addAll(interfaces.map { structureProvider(it) })
-                    return structure
-                }
-                finally {
-                    checkNotNull(loading.remove(id)) {
-                        "Expected $id to be on the loading map"
-                    }
+            try {
+                fun ClassIdentifier.create() =
+                        if(packageProvider != null) {
+                            toChange(packageProvider) { structureProvider(it).`class` }
+                        }
+                        else {
+                            toChange { structureProvider(it).`class` }
+                        }
+
+                structure.`class` = id.create()
+                structure.`super` = `super`?.let(structureProvider)
+                loadingInterfaces.addAll(interfaces.map { structureProvider(it) })
+                return structure
+            }
+            finally {
+                checkNotNull(loading.remove(id)) {
+                    "Expected $id to be on the loading map"
                 }
             }
         }
     }
 
-    fun find(method: MethodIdentifier, viewer: ClassStructure): MethodStructure? =
-            sequenceOf(
-                    methods[method],
-                    `super`?.find(method, viewer),
-                    interfaces.asSequence().mapNotNull { it.find(method, viewer) }.firstOrNull()
-            )
-                    .filterNotNull()
-                    .filter { it.canBeAccessedBy(viewer) }
-                    .firstOrNull()
-
-    fun findReverse(method: MethodIdentifier, viewer: ClassStructure): MethodStructure? =
-            sequenceOf(
-                    methods[method],
-                    methods.values.find { it.method.to == method },
-                    `super`?.findReverse(method, viewer),
-                    interfaces.asSequence().mapNotNull { it.findReverse(method, viewer) }.firstOrNull()
-            )
-                    .filterNotNull()
-                    .filter { it.canBeAccessedBy(viewer) }
-                    .firstOrNull()
-
-    fun find(field: FieldIdentifier, viewer: ClassStructure): FieldStructure? =
-            sequenceOf(
-                    fields[field],
-                    `super`?.find(field, viewer),
-                    interfaces.asSequence().mapNotNull { it.find(field, viewer) }.firstOrNull()
-            )
-                    .filterNotNull()
-                    .filter { it.canBeAccessedBy(viewer) }
-                    .firstOrNull()
-
-    fun findReverse(field: FieldIdentifier, viewer: ClassStructure): FieldStructure? =
-            sequenceOf(
-                    fields[field],
-                    fields.values.find { it.field.to == field },
-                    `super`?.findReverse(field, viewer),
-                    interfaces.asSequence().mapNotNull { it.findReverse(field, viewer) }.firstOrNull()
-            )
-                    .filterNotNull()
-                    .filter { it.canBeAccessedBy(viewer) }
-                    .firstOrNull()
-
-    fun find(field: FieldIdentifier): FieldStructure?
-            = fields[field]
-            ?: `super`?.find(field, this)
-            ?: interfaces.asSequence().mapNotNull { it.find(field, this) }.firstOrNull()
+    /**
+     * Merges the members of a full scan of this class into this structure and marks it as full.
+     *
+     * Concurrent upgrades of the same structure are harmless, the members which were registered first are kept.
+     */
+    fun upgrade(full: ClassStructure) {
+        full.fields.forEach { fields.putIfAbsent(it.key, it.value) }
+        full.methods.forEach { methods.putIfAbsent(it.key, it.value) }
+        isInterface = full.isInterface
+
+        // Written last, publishes all the members above
+        isFull = true
+    }
+
+    /**
+     * Members indexed by their target names, valid while the projections version and the number of members are unchanged.
+     *
+     * Every target name setter increments the [Projections.version], so a rename invalidates the indexes like it
+     * invalidates the cached projections. Method targets include the descriptors, which change with the class names.
+     * When several members share a target name the one with the lowest original identifier is indexed, so the result
+     * doesn't depend on the iteration order of the member maps.
+     */
+    private class ReverseIndex<out T>(val version: Int, val size: Int, val members: Map<Any, T>)
+
+    @Volatile private var fieldIndex: ReverseIndex<FieldStructure>? = null
+    @Volatile private var methodIndex: ReverseIndex<MethodStructure>? = null
+
+    private inline fun <K: Comparable<K>, T: Any> reverse(
+            target: K, members: Map<K, T>, cached: ReverseIndex<T>?, store: (ReverseIndex<T>) -> Unit,
+            from: (T) -> K, to: (T) -> K
+    ): T? {
+        val version = Projections.version
+        if(cached != null && cached.version == version && cached.size == members.size) {
+            val found = cached.members[target] ?: return null
+
+            // A member replaced without changing the size is detected here and the index is rebuilt
+            if(members[from(found)] === found)
+                return found
+        }
+
+        val reversed = HashMap<Any, T>(members.size * 2)
+        members.entries.sortedBy { it.key }.forEach { reversed.putIfAbsent(to(it.value), it.value) }
+        store(ReverseIndex(version, members.size, reversed))
+        return reversed[target]
+    }
+
+    private fun reverse(field: FieldIdentifier) =
+            reverse(field, fields, fieldIndex, { fieldIndex = it }, { it.field.from }, { it.field.to })
+
+    private fun reverse(method: MethodIdentifier) =
+            reverse(method, methods, methodIndex, { methodIndex = it }, { it.method.from }, { it.method.to })
+
+    /**
+     * Set when this class and all its super classes and interfaces are full, their member tables don't change anymore
+     */
+    @Volatile private var hierarchyFull = false
+
+    private fun isHierarchyFull(): Boolean {
+        if(hierarchyFull)
+            return true
+
+        val full = isFull && `super`?.isHierarchyFull() != false && interfaces.all { it.isHierarchyFull() }
+        if(full)
+            hierarchyFull = true
+
+        return full
+    }
+
+    /**
+     * Marks a member which was not found in the hierarchy on the resolved tables
+     */
+    private object Missing
+
+    /**
+     * The inherited members which were resolved from this class, including the misses.
+     * Only used when the hierarchy is full, partial hierarchies are resolved by walking them.
+     */
+    @Volatile private var resolvedFields: ConcurrentHashMap<FieldIdentifier, Any>? = null
+    @Volatile private var resolvedMethods: ConcurrentHashMap<MethodIdentifier, Any>? = null
+
+    private inline fun <K: Any, T: Any> resolve(id: K, table: () -> ConcurrentHashMap<K, Any>, lookup: () -> T?): T? {
+        if(!isHierarchyFull())
+            return lookup()
+
+        val resolved = table()
+        val cached = resolved[id]
+        if(cached != null) {
+            @Suppress("UNCHECKED_CAST")
+            return if(cached === Missing) null else cached as T
+        }
+
+        val found = lookup()
+        resolved.putIfAbsent(id, found ?: Missing)
+        return found
+    }
+
+    private fun resolvedFields() = resolvedFields ?: synchronized(this) {
+        resolvedFields ?: ConcurrentHashMap<FieldIdentifier, Any>().also { resolvedFields = it }
+    }
+
+    private fun resolvedMethods() = resolvedMethods ?: synchronized(this) {
+        resolvedMethods ?: ConcurrentHashMap<MethodIdentifier, Any>().also { resolvedMethods = it }
+    }
+
+    /**
+     * Finds a field in this class or in its hierarchy, in this order: declared, super classes and then interfaces.
+     *
+     * Inherited lookups are memoized when the hierarchy is full, so repeated lookups are a single probe.
+     */
+    fun find(field: FieldIdentifier): FieldStructure? {
+        fields[field]?.let { return it }
+        return resolve(field, this::resolvedFields) {
+            `super`?.find(field) ?: interfaces.firstResult { it.find(field) }
+        }
+    }
+
+    /**
+     * Finds a method in this class or in its hierarchy, in this order: declared, super classes and then interfaces.
+     *
+     * Inherited lookups are memoized when the hierarchy is full, so repeated lookups are a single probe.
+     */
+    fun find(method: MethodIdentifier): MethodStructure? {
+        methods[method]?.let { return it }
+        return resolve(method, this::resolvedMethods) {
+            `super`?.find(method) ?: interfaces.firstResult { it.find(method) }
+        }
+    }
+
+    fun find(method: MethodIdentifier, viewer: ClassStructure): MethodStructure? {
+        val found = find(method) ?: return null
+        if(found.canBeAccessedBy(viewer))
+            return found
+
+        methods[method]?.let { if(it.canBeAccessedBy(viewer)) return it }
+        return `super`?.find(method, viewer) ?: interfaces.firstResult { it.find(method, viewer) }
+    }
+
+    fun find(field: FieldIdentifier, viewer: ClassStructure): FieldStructure? {
+        val found = find(field) ?: return null
+        if(found.canBeAccessedBy(viewer))
+            return found
+
+        fields[field]?.let { if(it.canBeAccessedBy(viewer)) return it }
+        return `super`?.find(field, viewer) ?: interfaces.firstResult { it.find(field, viewer) }
+    }
+
+    /**
+     * Finds a method by its original or by its target identifier, in this class or in its hierarchy
+     */
+    fun findReverse(method: MethodIdentifier, viewer: ClassStructure): MethodStructure? {
+        methods[method]?.let { if(it.canBeAccessedBy(viewer)) return it }
+        reverse(method)?.let { if(it.canBeAccessedBy(viewer)) return it }
+        return `super`?.findReverse(method, viewer) ?: interfaces.firstResult { it.findReverse(method, viewer) }
+    }
+
+    /**
+     * Finds a field by its original or by its target name, in this class or in its hierarchy
+     */
+    fun findReverse(field: FieldIdentifier, viewer: ClassStructure): FieldStructure? {
+        fields[field]?.let { if(it.canBeAccessedBy(viewer)) return it }
+        reverse(field)?.let { if(it.canBeAccessedBy(viewer)) return it }
+        return `super`?.findReverse(field, viewer) ?: interfaces.firstResult { it.findReverse(field, viewer) }
+    }
 
     fun findReverse(field: FieldIdentifier): FieldStructure?
-            = fields[field] ?: fields.values.find { it.field.to == field }
+            = fields[field] ?: reverse(field)
             ?: `super`?.findReverse(field, this)
-            ?: interfaces.asSequence().mapNotNull { it.findReverse(field, this) }.firstOrNull()
-
-    fun find(method: MethodIdentifier): MethodStructure?
-            = methods[method]
-            ?: `super`?.find(method, this)
-            ?: interfaces.asSequence().mapNotNull { it.find(method, this) }.firstOrNull()
+            ?: interfaces.firstResult { it.findReverse(field, this) }
 
     fun findReverse(method: MethodIdentifier): MethodStructure?
-            = methods[method] ?: methods.values.find { it.method.to == method }
+            = methods[method] ?: reverse(method)
             ?: `super`?.findReverse(method, this)
-            ?: interfaces.asSequence().mapNotNull { it.findReverse(method, this) }.firstOrNull()
+            ?: interfaces.firstResult { it.findReverse(method, this) }
 
     override fun toString() = when(isInterface) {
         true -> "interface ";
@@ -174,3 +303,13 @@ class ClassStructure private constructor(var isInterface: Boolean?, val interfac
         null-> "unknown "
     } + `class`.toString() + if(isFull) " (full)" else " (partial)"
 }
+
+/**
+ * Returns the first non-null result of the transform, evaluating only up to the first result
+ */
+private inline fun <T, R: Any> Iterable<T>.firstResult(transform: (T) -> R?): R? {
+    for(element in this) {
+        transform(element)?.let { return it }
+    }
+    return null
+}
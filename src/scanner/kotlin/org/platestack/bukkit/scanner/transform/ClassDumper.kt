@@ -0,0 +1,141 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.transform
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+import java.util.logging.Logger
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Debug tool which writes the remapped classes to the disk on a background thread.
+ *
+ * The classes are queued on a bounded queue and written in batches, the class loading threads only wait when the
+ * writer is more than [capacity] classes behind.
+ *
+ * When the output file name ends with `.jar` or `.zip` all classes are written to a single archive which is finished
+ * by [close] or when the JVM shuts down, otherwise every class is written to its own file inside the output directory.
+ */
+class ClassDumper(val output: File, val logger: Logger, val capacity: Int = 1024) : Closeable {
+    private class Entry(val name: String, val bytes: ByteArray)
+
+    private val end = Entry("", ByteArray(0))
+    private val queue: BlockingQueue<Entry> = ArrayBlockingQueue(capacity)
+    private val archive = output.name.let { it.endsWith(".jar", true) || it.endsWith(".zip", true) }
+    private val thread = Thread(this::run, "PlateStack Class Dumper").apply { isDaemon = true }
+    private val shutdownHook = Thread(this::close, "PlateStack Class Dumper Shutdown")
+    @Volatile private var closed = false
+
+    init {
+        thread.start()
+        Runtime.getRuntime().addShutdownHook(shutdownHook)
+    }
+
+    /**
+     * Queues the bytes of a class to be written, the class is discarded if the dumper gets closed while waiting for space
+     * @param name The binary name of the class
+     */
+    fun dump(name: String, bytes: ByteArray) {
+        val entry = Entry(name.replace('.', '/') + ".class", bytes)
+
+        // The writer stops consuming after close(), so the closed flag is checked again while the queue is full
+        while(!closed) {
+            if(queue.offer(entry, 100, TimeUnit.MILLISECONDS))
+                return
+        }
+    }
+
+    private fun run() {
+        try {
+            if(archive) {
+                output.absoluteFile.parentFile.mkdirs()
+                ZipOutputStream(FileOutputStream(output).buffered()).use { zip ->
+                    val written = hashSetOf<String>()
+                    drain { batch ->
+                        batch.forEach {
+                            if(written.add(it.name)) {
+                                zip.putNextEntry(ZipEntry(it.name))
+                                zip.write(it.bytes)
+                                zip.closeEntry()
+                            }
+                        }
+                        zip.flush()
+                    }
+                }
+            }
+            else {
+                drain { batch ->
+                    batch.forEach {
+                        File(output, it.name).also { it.parentFile.mkdirs() }.writeBytes(it.bytes)
+                    }
+                }
+            }
+        }
+        catch (e: Exception) {
+            closed = true
+            queue.clear()
+            logger.log(Level.SEVERE, "Failed to dump the remapped classes to $output", e)
+        }
+    }
+
+    /**
+     * Passes the queued entries to the writer in batches until the end of the queue is reached
+     */
+    private inline fun drain(writer: (List<Entry>) -> Unit) {
+        val batch = ArrayList<Entry>(capacity)
+        while(true) {
+            batch += queue.take()
+            queue.drainTo(batch)
+            val last = batch.indexOf(end)
+            if(last >= 0) {
+                writer(batch.subList(0, last))
+                return
+            }
+
+            writer(batch)
+            batch.clear()
+        }
+    }
+
+    /**
+     * Writes all queued classes and finishes the output
+     */
+    @Synchronized
+    override fun close() {
+        if(closed)
+            return
+
+        closed = true
+        if(Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook)
+            }
+            catch (ignored: IllegalStateException) {
+                // Already shutting down
+            }
+        }
+
+        queue.put(end)
+        thread.join()
+    }
+}
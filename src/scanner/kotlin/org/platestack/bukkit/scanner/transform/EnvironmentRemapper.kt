@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.transform
+
+import org.objectweb.asm.commons.Remapper
+import org.platestack.bukkit.scanner.mappings.provider.Srg2NotchURLMappingsProvider
+import org.platestack.bukkit.scanner.rework.ClassScanner
+import org.platestack.bukkit.scanner.rework.PackagePrefixTrie
+import org.platestack.bukkit.scanner.rework.RemapEnvironment
+import org.platestack.bukkit.scanner.rework.RemapEnvironmentSnapshot
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import org.platestack.bukkit.scanner.structure.FieldIdentifier
+import org.platestack.bukkit.scanner.structure.MethodIdentifier
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * An ASM remapper which resolves the names using a remap environment, the classes which are not yet known by the
+ * environment are provided by the scanner.
+ *
+ * The resolved names are compiled into flat string-keyed tables, one per owner class, the first reference to an owner
+ * copies its class name and declared members from the environment and every other lookup result is memoized,
+ * including the names which are not remapped. After the first resolution a callback is a couple of hash probes
+ * on the strings received from ASM, without creating identifiers or walking the environment.
+ *
+ * Owners which can never be remapped according to the [PackagePrefixTrie] of the root environment are compiled
+ * without asking the scanner, so the references to the JDK, Kotlin and Bukkit API never cause class file reads.
+ *
+ * The compiled tables are dropped when that prefix trie is rebuilt, which happens when a class or package is registered
+ * to the root environment or to its parents or when a target name changes, so the remapper never returns stale names.
+ *
+ * This remapper is thread-safe as long as the scanner is thread-safe.
+ */
+class EnvironmentRemapper(val environment: RemapEnvironment, val scanner: ClassScanner): Remapper() {
+    companion object {
+        /**
+         * Must be incremented every time this remapper starts to produce different classes from the same environment,
+         * it's part of the fingerprint of the cached and of the ahead-of-time remapped classes
+         */
+        const val VERSION = 1
+
+        /**
+         * The fingerprint of the classes remapped with the environment of a snapshot, it changes when the mappings,
+         * the base structures or this remapper changes
+         */
+        fun fingerprint(key: RemapEnvironmentSnapshot.Key) = "${key.fingerprint}/remapper-$VERSION"
+    }
+
+    /**
+     * The resolved names of a class and its members, names which are not remapped are mapped to themselves
+     */
+    private class Owner(val name: String, val untouched: Boolean = false) {
+        val fields = ConcurrentHashMap<String, String>()
+        val methods = ConcurrentHashMap<String, ConcurrentHashMap<String, String>>()
+    }
+
+    /**
+     * The owners which were compiled while the root environment had the given prefix trie
+     */
+    private class Tables(val prefixes: PackagePrefixTrie) {
+        val owners = ConcurrentHashMap<String, Owner>()
+    }
+
+    @Volatile private var tables: Tables? = null
+
+    /**
+     * The plugin classes which are registered to the child environments are never remapped and the base environments
+     * contain only untouched classes, so only the root environment which is not a base is relevant
+     */
+    private val root = generateSequence(environment) { it.parent }.lastOrNull { !it.isBase } ?: environment
+
+    private fun tables(): Tables {
+        val prefixes = root.prefixes
+        tables?.let { if(it.prefixes === prefixes) return it }
+        return Tables(prefixes).also { tables = it }
+    }
+
+    private fun owner(name: String) = tables().let { tables ->
+        tables.owners[name] ?: compile(tables.prefixes, name).let { tables.owners.putIfAbsent(name, it) ?: it }
+    }
+
+    private fun compile(prefixes: PackagePrefixTrie, owner: String): Owner {
+        if(prefixes.scope(owner) == PackagePrefixTrie.Scope.UNTOUCHED)
+            return Owner(owner, true)
+
+        val structure = scanner.provide(environment, ClassIdentifier(owner)) ?: return Owner(
+                // Classes which can't be found still follow the relocation of their packages
+                prefixes.move(owner)?.let { it.to.prefix + owner.substring(it.from.prefix.length) } ?: owner
+        )
+        val compiled = Owner(structure.`class`.to.fullName)
+        structure.fields.forEach { (id, field) ->
+            compiled.fields[id.name] = field.field.to.name
+        }
+        structure.methods.forEach { (id, method) ->
+            compiled.methods.getOrPut(id.name, ::ConcurrentHashMap)[id.descriptor] = method.method.name.to
+        }
+        return compiled
+    }
+
+    override fun map(typeName: String): String {
+        val tables = tables()
+        tables.owners[typeName]?.let { return it.name }
+
+        // Classes outside of the renamed and moved packages keep their names, they are compiled only when a member is referenced
+        if(tables.prefixes.scope(typeName) != PackagePrefixTrie.Scope.REMAPPED)
+            return typeName
+
+        return owner(typeName).name
+    }
+
+    override fun mapFieldName(owner: String, name: String, desc: String): String {
+        val compiled = owner(owner)
+        if(compiled.untouched)
+            return name
+
+        val fields = compiled.fields
+        return fields[name] ?: resolveField(owner, name, desc).let { fields.putIfAbsent(name, it) ?: it }
+    }
+
+    override fun mapMethodName(owner: String, name: String, desc: String): String {
+        val compiled = owner(owner)
+        if(compiled.untouched)
+            return name
+
+        val methods = compiled.methods.let { it[name] ?: it.getOrPut(name, ::ConcurrentHashMap) }
+        return methods[desc] ?: resolveMethod(owner, name, desc).let { methods.putIfAbsent(desc, it) ?: it }
+    }
+
+    private fun resolveField(owner: String, name: String, desc: String): String {
+        val cid = ClassIdentifier(owner)
+        val fid = FieldIdentifier(name)
+        val result = scanner.provide(environment, cid, fid)?.field?.to?.name ?: scanner.provide(environment, cid)?.find(fid)?.field?.name?.to ?: name
+        if(Srg2NotchURLMappingsProvider.fieldNamePattern.matches(result))
+            NoSuchFieldError("The field $name was remapped to a SRG name \"$result\". " +
+                    "This indicates that the original field is not available on this server " +
+                    "or has been incorrectly analyzed by the remapper. Field: $owner#$name $desc"
+            ).printStackTrace()
+
+        return result
+    }
+
+    private fun resolveMethod(owner: String, name: String, desc: String): String {
+        val cid = ClassIdentifier(owner)
+        val mid = MethodIdentifier(name, desc)
+        val result = scanner.provide(environment, cid, mid)?.method?.to?.name ?: scanner.provide(environment, cid)?.find(mid)?.method?.name?.to ?: name
+        if(Srg2NotchURLMappingsProvider.methodNamePattern.matches(result))
+            NoSuchFieldError("The method $name was remapped to a SRG name \"$result\". " +
+                    "This indicates that the original method is not available on this server " +
+                    "or has been incorrectly analyzed by the remapper. Method: $owner#$name $desc"
+            ).printStackTrace()
+
+        return result
+    }
+}
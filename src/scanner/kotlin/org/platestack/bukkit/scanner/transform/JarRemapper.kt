@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.transform
+
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.commons.ClassRemapper
+import org.platestack.bukkit.scanner.rework.*
+import org.platestack.bukkit.scanner.writeAtomically
+import java.io.File
+import java.util.concurrent.*
+import java.util.jar.*
+import java.util.logging.Logger
+import java.util.zip.ZipEntry
+import kotlin.system.exitProcess
+
+/**
+ * Remaps whole plugin jars ahead-of-time, without a running server.
+ *
+ * The work is split in three pipelined stages: a reader thread reads the entries in the jar order, a pool of workers
+ * parses and remaps the classes and the calling thread writes the results in the original order. The reader is
+ * bounded by [capacity], so only a window of the jar is kept in memory.
+ *
+ * The output manifest receives the [REMAPPED_ATTRIBUTE] with the mappings fingerprint, [RemapClassLoader] loads the
+ * classes of such jars without transforming them again when its fingerprint matches. Signature files are dropped
+ * because the remapped classes would not match them.
+ *
+ * @property environment The environment which contains the mappings, usually loaded from a [RemapEnvironmentSnapshot]
+ * @property classpath Resolves the classes referenced by the remapped jar, must include the jar itself, the server and the libraries
+ * @property fingerprint The fingerprint of the mappings which are in the environment
+ */
+class JarRemapper(
+        val environment: RemapEnvironment, val classpath: ResourceLoader, val fingerprint: String,
+        val parallelism: Int = Runtime.getRuntime().availableProcessors(), val capacity: Int = 256
+) {
+    companion object {
+        /**
+         * The manifest attribute which marks a jar as remapped, the value is the fingerprint of the mappings
+         */
+        const val REMAPPED_ATTRIBUTE = "PlateStack-Remapped"
+
+        private val signature = Regex("^META-INF/[^/]+\\.(SF|RSA|DSA|EC)$", RegexOption.IGNORE_CASE)
+    }
+
+    private class Entry(val name: String, val time: Long, val bytes: ByteArray?)
+
+    private val end = CompletableFuture.completedFuture(Entry("", 0, null))
+
+    /**
+     * Remaps all classes in the input jar and writes them to the output jar, the other resources are copied unchanged.
+     */
+    fun remap(input: File, output: File) {
+        val remapper = EnvironmentRemapper(RemapEnvironment(environment), ResourceLoaderScanner(classpath))
+        val workers = Executors.newFixedThreadPool(parallelism) { task ->
+            Thread(task, "PlateStack Jar Remapper").apply { isDaemon = true }
+        }
+        val queue = ArrayBlockingQueue<Future<Entry>>(capacity)
+
+        JarFile(input).use { jar ->
+            val manifest = Manifest(jar.manifest ?: Manifest())
+            manifest.mainAttributes.putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0")
+            manifest.mainAttributes.putValue(REMAPPED_ATTRIBUTE, fingerprint)
+
+            val reader = Thread({
+                try {
+                    for(entry in jar.entries()) {
+                        val name = entry.name
+                        if(name.equals(JarFile.MANIFEST_NAME, true) || signature.matches(name))
+                            continue
+
+                        if(entry.isDirectory) {
+                            queue.put(CompletableFuture.completedFuture(Entry(name, entry.time, null)))
+                            continue
+                        }
+
+                        val bytes = jar.getInputStream(entry).use { it.readBytes() }
+                        queue.put(
+                                if(name.endsWith(".class")) workers.submit<Entry> { remap(remapper, entry, bytes) }
+                                else CompletableFuture.completedFuture(Entry(name, entry.time, bytes))
+                        )
+                    }
+                }
+                catch (e: InterruptedException) {
+                    return@Thread
+                }
+                catch (e: Exception) {
+                    queue.put(CompletableFuture<Entry>().apply { completeExceptionally(e) })
+                }
+                queue.put(end)
+            }, "PlateStack Jar Reader").apply { isDaemon = true }
+
+            reader.start()
+            try {
+                output.writeAtomically {
+                    val out = JarOutputStream(it, manifest)
+                    while(true) {
+                        val entry = try {
+                            queue.take().get()
+                        }
+                        catch (e: ExecutionException) {
+                            throw e.cause ?: e
+                        }
+
+                        if(entry === end.get())
+                            break
+
+                        out.putNextEntry(ZipEntry(entry.name).apply { time = entry.time })
+                        entry.bytes?.let { out.write(it) }
+                        out.closeEntry()
+                    }
+
+                    // The stream is closed by writeAtomically
+                    out.finish()
+                }
+            }
+            finally {
+                reader.interrupt()
+                workers.shutdownNow()
+                reader.join()
+            }
+        }
+    }
+
+    private fun remap(remapper: EnvironmentRemapper, entry: JarEntry, bytes: ByteArray): Entry {
+        val reader = ClassReader(bytes)
+        val writer = ClassWriter(0)
+        reader.accept(ClassRemapper(writer, remapper), 0)
+        return Entry(remapper.map(reader.className) + ".class", entry.time, writer.toByteArray())
+    }
+}
+
+/**
+ * Command line entry point of the [JarRemapper], works fully offline.
+ *
+ * Usage: `--snapshot <file> [--classpath <jars>] [--threads <n>] <input.jar> <output.jar>`
+ *
+ * The snapshot is the `mappings/srg2craft.snapshot` file which is created by PlateBukkit on the server, the classpath
+ * must contain the server jar and the libraries which are referenced by the plugin.
+ */
+fun main(args: Array<String>) {
+    val logger = Logger.getLogger(JarRemapper::class.java.name)
+    val usage = "Usage: --snapshot <file> [--classpath <jar${File.pathSeparator}jar...>] [--threads <n>] <input.jar> <output.jar>"
+
+    var snapshot: File? = null
+    var classpath = emptyList<File>()
+    var threads = Runtime.getRuntime().availableProcessors()
+    val files = mutableListOf<File>()
+
+    val iterator = args.iterator()
+    try {
+        while(iterator.hasNext()) {
+            val arg = iterator.next()
+            when(arg) {
+                "--snapshot" -> snapshot = File(iterator.next())
+                "--classpath" -> classpath = iterator.next().split(File.pathSeparator).filter { it.isNotEmpty() }.map(::File)
+                "--threads" -> threads = iterator.next().toInt()
+                else -> files += File(arg)
+            }
+        }
+    }
+    catch (e: RuntimeException) {
+        System.err.println(usage)
+        exitProcess(1)
+    }
+
+    if(snapshot == null || files.size != 2 || threads < 1) {
+        System.err.println(usage)
+        exitProcess(1)
+    }
+
+    val (input, output) = files
+    val key = RemapEnvironmentSnapshot.readKey(snapshot) ?: error("The snapshot $snapshot is missing or has an unsupported version")
+    val environment = RemapEnvironmentSnapshot.read(snapshot, key)!!
+    logger.info("Loaded the snapshot for Minecraft ${key.minecraftVersion} (${key.packageVersion})")
+
+    val bootstrap = ClassResourceLoader(object : ClassLoader(null) {})
+    JarResourceLoader(listOf(input) + classpath, bootstrap).use { loader ->
+        val start = System.nanoTime()
+        JarRemapper(environment, loader, EnvironmentRemapper.fingerprint(key), threads).remap(input, output)
+        logger.info("Remapped $input to $output in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)}ms")
+    }
+}
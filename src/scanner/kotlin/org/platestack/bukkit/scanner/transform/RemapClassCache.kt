@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.transform
+
+import java.io.*
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.*
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.logging.Level
+import java.util.logging.Logger
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * A persistent content addressed cache of remapped classes.
+ *
+ * The entries are keyed by the SHA-1 of the original class bytes and are stored deflated in a single append-only file,
+ * which is indexed in memory when the cache is opened.
+ *
+ * The file header stores the [fingerprint] of the environment which was used to remap the classes, when it doesn't
+ * match the current fingerprint the whole file is discarded, so any mapping change invalidates the cache.
+ *
+ * Entries which were partially written by a crash are detected by their length and checksum and are ignored.
+ *
+ * The file never grows beyond [maxSize], the whole cache is cleared when an entry doesn't fit anymore.
+ *
+ * Entry layout: `length`, `SHA-1 key (20 bytes)`, `raw length`, `CRC32 of the raw bytes`, `deflated bytes`
+ */
+class RemapClassCache(val file: File, val fingerprint: String, val logger: Logger, val maxSize: Long = 256L shl 20) : Closeable {
+    private companion object {
+        const val MAGIC = 0x50535243 // PSRC
+        const val FORMAT_VERSION = 1
+        const val KEY_SIZE = 20
+        const val ENTRY_HEADER = KEY_SIZE + 4 + 4
+    }
+
+    private val channel: FileChannel
+    private val index = ConcurrentHashMap<String, Long>()
+    private val appendLock = Any()
+    @Volatile private var end = 0L
+    private val headerSize = header().remaining()
+
+    init {
+        file.absoluteFile.parentFile.mkdirs()
+        channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE)
+        try {
+            if(!load())
+                reset()
+        }
+        catch (e: IOException) {
+            logger.log(Level.WARNING, "The remapped class cache $file is corrupted, it will be recreated", e)
+            reset()
+        }
+    }
+
+    private fun header(): ByteBuffer {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use {
+            it.writeInt(MAGIC)
+            it.writeInt(FORMAT_VERSION)
+            it.writeUTF(fingerprint)
+        }
+        return ByteBuffer.wrap(bytes.toByteArray())
+    }
+
+    private fun readFully(buffer: ByteBuffer, position: Long): Boolean {
+        var current = position
+        while(buffer.hasRemaining()) {
+            val read = channel.read(buffer, current)
+            if(read < 0)
+                return false
+            current += read
+        }
+        buffer.flip()
+        return true
+    }
+
+    private fun writeFully(buffer: ByteBuffer, position: Long) {
+        var current = position
+        while(buffer.hasRemaining()) {
+            current += channel.write(buffer, current)
+        }
+    }
+
+    private fun load(): Boolean {
+        val size = channel.size()
+        if(size > maxSize)
+            return false
+
+        val expected = header()
+        val found = ByteBuffer.allocate(expected.remaining())
+        if(!readFully(found, 0) || found != expected)
+            return false
+
+        var position = expected.limit().toLong()
+        val entryHeader = ByteBuffer.allocate(4 + KEY_SIZE)
+        val key = ByteArray(KEY_SIZE)
+        while(position < size) {
+            entryHeader.clear()
+            if(!readFully(entryHeader, position))
+                break
+
+            val length = entryHeader.int
+            if(length < ENTRY_HEADER || position + 4 + length > size)
+                break
+
+            entryHeader.get(key)
+            index[BigInteger(1, key).toString(16)] = position
+            position += 4 + length
+        }
+
+        if(position < size) {
+            logger.warning("Discarding a partially written entry from the remapped class cache $file")
+            channel.truncate(position)
+        }
+
+        end = position
+        return true
+    }
+
+    private fun reset() {
+        index.clear()
+        channel.truncate(0)
+        val header = header()
+        end = header.remaining().toLong()
+        writeFully(header, 0)
+    }
+
+    /**
+     * Computes the key of the original class bytes
+     */
+    fun key(original: ByteArray): ByteArray = MessageDigest.getInstance("SHA-1").digest(original)
+
+    private val ByteArray.id get() = BigInteger(1, this).toString(16)
+
+    /**
+     * Gets the remapped bytes of a class which was stored with the given key
+     * @return The remapped bytes or `null` if the cache doesn't contain a valid entry for that key
+     */
+    operator fun get(key: ByteArray): ByteArray? {
+        val id = key.id
+        val position = index[id] ?: return null
+        try {
+            val header = ByteBuffer.allocate(4 + ENTRY_HEADER)
+            if(!readFully(header, position))
+                return null
+
+            val length = header.int
+            header.position(4 + KEY_SIZE)
+            val rawLength = header.int
+            val crc = header.int.toLong() and 0xFFFFFFFFL
+            if(length < ENTRY_HEADER || position + 4 + length > end || rawLength < 0 || rawLength > maxSize)
+                throw IOException("Invalid entry length")
+
+            val compressed = ByteBuffer.allocate(length - ENTRY_HEADER)
+            if(!readFully(compressed, position + 4 + ENTRY_HEADER))
+                return null
+
+            val inflater = Inflater()
+            val raw = try {
+                inflater.setInput(compressed.array(), 0, compressed.limit())
+                ByteArray(rawLength).also {
+                    if(inflater.inflate(it) != rawLength)
+                        throw IOException("Unexpected entry size")
+                }
+            }
+            finally {
+                inflater.end()
+            }
+
+            if(CRC32().apply { update(raw) }.value != crc)
+                throw IOException("Checksum mismatch")
+
+            return raw
+        }
+        catch (e: Exception) {
+            logger.log(Level.WARNING, "Discarding the invalid remapped class cache entry $id", e)
+            index.remove(id, position)
+            return null
+        }
+    }
+
+    /**
+     * Stores the remapped bytes of a class
+     */
+    operator fun set(key: ByteArray, remapped: ByteArray) {
+        val id = key.id
+        if(index.containsKey(id))
+            return
+
+        val deflater = Deflater(Deflater.BEST_SPEED)
+        val compressed = try {
+            deflater.setInput(remapped)
+            deflater.finish()
+            val out = ByteArrayOutputStream(remapped.size / 2 + 64)
+            val buffer = ByteArray(8192)
+            while(!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer))
+            }
+            out.toByteArray()
+        }
+        finally {
+            deflater.end()
+        }
+
+        val entry = ByteBuffer.allocate(4 + ENTRY_HEADER + compressed.size)
+        entry.putInt(ENTRY_HEADER + compressed.size)
+        entry.put(key)
+        entry.putInt(remapped.size)
+        entry.putInt(CRC32().apply { update(remapped) }.value.toInt())
+        entry.put(compressed)
+        entry.flip()
+
+        // Too large to be stored even on an empty cache
+        if(headerSize + entry.limit() > maxSize)
+            return
+
+        synchronized(appendLock) {
+            if(index.containsKey(id))
+                return
+
+            try {
+                if(end + entry.limit() > maxSize) {
+                    logger.info { "The remapped class cache $file reached its maximum size, it will be cleared" }
+                    reset()
+                }
+
+                writeFully(entry, end)
+                index[id] = end
+                end += entry.limit()
+            }
+            catch (e: IOException) {
+                logger.log(Level.WARNING, "Failed to store a remapped class in the cache $file", e)
+            }
+        }
+    }
+
+    override fun close() {
+        channel.close()
+    }
+}
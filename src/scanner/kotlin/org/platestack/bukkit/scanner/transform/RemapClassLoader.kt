@@ -19,66 +19,121 @@ package org.platestack.bukkit.scanner.transform
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.commons.ClassRemapper
-import org.objectweb.asm.commons.Remapper
-import org.platestack.bukkit.scanner.mappings.provider.Srg2NotchURLMappingsProvider
 import org.platestack.bukkit.scanner.rework.RemapEnvironment
 import org.platestack.bukkit.scanner.rework.ResourceLoaderScanner
-import org.platestack.bukkit.scanner.structure.ClassIdentifier
-import org.platestack.bukkit.scanner.structure.FieldIdentifier
-import org.platestack.bukkit.scanner.structure.MethodIdentifier
 import org.platestack.common.transform.TransformingClassLoader
 import java.io.File
+import java.io.IOException
 import java.io.InputStream
+import java.net.URLClassLoader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.jar.JarFile
 
+/**
+ * Remaps the classes loaded by this class loader using the remap environment.
+ *
+ * This class loader is parallel capable, classes with different names are remapped concurrently. The remapper is
+ * stateless and the environment is thread-safe, so only the transformations of the same class name are serialized.
+ */
 open class RemapClassLoader(parent: ClassLoader, parentEnvironment: RemapEnvironment): TransformingClassLoader(parent), RemapEnvironmentHost {
+    companion object {
+        /**
+         * `false` when the JVM refused to register this class loader as parallel capable, which happens when the
+         * [TransformingClassLoader] is not parallel capable. All classes are then loaded under a single lock.
+         */
+        val isParallelCapable = registerAsParallelCapable()
+
+        /**
+         * When set, all remapped classes are sent to this dumper. Disabled by default.
+         */
+        @Volatile var dumper: ClassDumper? = null
+
+        /**
+         * When set, the remapped classes are stored on this cache and reused when the same original bytes are loaded again.
+         */
+        @Volatile var cache: RemapClassCache? = null
+
+        /**
+         * The fingerprint of the active mappings, classes from jars which were remapped ahead-of-time by the [JarRemapper]
+         * with the same fingerprint are loaded without transformation.
+         */
+        @Volatile var fingerprint: String? = null
+    }
+
     override val environment = RemapEnvironment(parentEnvironment)
     private val scanner = ResourceLoaderScanner(parent)
 
-    private val remapper = object : Remapper() {
-        override fun map(typeName: String): String {
-            val result = scanner.provide(environment, ClassIdentifier(typeName))?.`class`?.to?.fullName ?: typeName
-            return result
-        }
+    private val remapper = EnvironmentRemapper(environment, scanner)
 
-        override fun mapFieldName(owner: String, name: String, desc: String): String {
-            val cid = ClassIdentifier(owner)
-            val fid = FieldIdentifier(name)
-            val result = scanner.provide(environment, cid, fid)?.field?.to?.name ?: scanner.provide(environment, cid)?.find(fid)?.field?.name?.to ?: name
-            if(Srg2NotchURLMappingsProvider.fieldNamePattern.matches(result))
-                NoSuchFieldError("The field $name was remapped to a SRG name \"$result\". " +
-                        "This indicates that the original field is not available on this server " +
-                        "or has been incorrectly analyzed by the remapper. Field: $owner#$name $desc"
-                ).printStackTrace()
-
-            return result
-        }
+    /**
+     * The jars of each source class loader which were remapped ahead-of-time with the current [fingerprint], the
+     * manifest of every jar is read only once. Only the jars of [URLClassLoader]s are considered.
+     */
+    private val preRemappedJars = ConcurrentHashMap<ClassLoader, Set<String>>()
+
+    private fun preRemappedJars(source: ClassLoader, fingerprint: String) = preRemappedJars.getOrPut(source) {
+        generateSequence(source) { it.parent }
+                .filterIsInstance<URLClassLoader>()
+                .flatMap { it.urLs.asSequence() }
+                .filter { it.protocol == "file" && isPreRemapped(File(it.toURI()), fingerprint) }
+                .map { "jar:$it" }
+                .toSet()
+    }
+
+    private fun isPreRemapped(jar: File, fingerprint: String): Boolean {
+        if(!jar.isFile)
+            return false
 
-        override fun mapMethodName(owner: String, name: String, desc: String): String {
-            val cid = ClassIdentifier(owner)
-            val mid = MethodIdentifier(name, desc)
-            val result = scanner.provide(environment, cid, mid)?.method?.to?.name ?: scanner.provide(environment, cid)?.find(mid)?.method?.name?.to ?: name
-            if(Srg2NotchURLMappingsProvider.methodNamePattern.matches(result))
-                NoSuchFieldError("The method $name was remapped to a SRG name \"$result\". " +
-                        "This indicates that the original method is not available on this server " +
-                        "or has been incorrectly analyzed by the remapper. Method: $owner#$name $desc"
-                ).printStackTrace()
-
-            return result
+        return try {
+            JarFile(jar).use { it.manifest?.mainAttributes?.getValue(JarRemapper.REMAPPED_ATTRIBUTE) == fingerprint }
         }
+        catch (e: IOException) {
+            false
+        }
+    }
+
+    /**
+     * Checks if the class was read from a jar which was remapped ahead-of-time with the current [fingerprint].
+     *
+     * The class resource is only looked up when the source can see a pre-remapped jar.
+     */
+    private fun isPreRemapped(source: ClassLoader, name: String): Boolean {
+        val fingerprint = fingerprint ?: return false
+        val jars = preRemappedJars(source, fingerprint)
+        if(jars.isEmpty())
+            return false
+
+        val url = source.getResource(name.replace('.', '/') + ".class") ?: return false
+        return url.protocol == "jar" && url.toString().substringBefore("!/") in jars
     }
 
     override fun transform(source: ClassLoader, name: String, input: InputStream): ByteArray {
-        val reader = ClassReader(input)
-        val writer = ClassWriter(0)
+        val original = input.readBytes()
+        if(isPreRemapped(source, name))
+            return original
+
+        val cache = cache
+        val key = cache?.key(original)
+        val cached = if(cache != null && key != null) cache[key] else null
 
-        synchronized(this) {
-            ClassRemapper(writer, remapper).let {
-                reader.accept(it, 0)
-            }
+        val bytes = cached ?: remap(name, original).also {
+            if(cache != null && key != null)
+                cache[key] = it
         }
 
-        return writer.toByteArray().also {
-            File("classes/$name.class").also { it.parentFile.mkdirs() }.outputStream().buffered().use { out -> out.write(it) }
+        dumper?.dump(name, bytes)
+        return bytes
+    }
+
+    private fun remap(name: String, original: ByteArray): ByteArray {
+        val reader = ClassReader(original)
+        val writer = ClassWriter(0)
+
+        // loadClass already holds the class loading lock of this name
+        ClassRemapper(writer, remapper).let {
+            reader.accept(it, 0)
         }
+
+        return writer.toByteArray()
     }
 }
@@ -29,11 +29,25 @@ interface RemapEnvironmentHost {
 
 @BootReflectionTarget
 class MainClassLoader(urls: Array<URL>, parent: BootCoreDepsClassLoader): URLClassLoader(urls, parent), RemapEnvironmentHost {
+    companion object {
+        /**
+         * `false` when the JVM refused to register this class loader as parallel capable
+         */
+        val isParallelCapable = registerAsParallelCapable()
+    }
+
     val coreDeps get() = parent as BootCoreDepsClassLoader
     override val environment get() = (parent.parent.parent as BootScannerClassLoader).environment as RemapEnvironment
 }
 
 @BootReflectionTarget
 class MainTransformerClassLoader(parent: MainClassLoader): RemapClassLoader(parent, parent.environment) {
+    companion object {
+        /**
+         * `false` when the JVM refused to register this class loader as parallel capable, see [RemapClassLoader.isParallelCapable]
+         */
+        val isParallelCapable = registerAsParallelCapable()
+    }
+
     val main get() = parent as MainClassLoader
 }
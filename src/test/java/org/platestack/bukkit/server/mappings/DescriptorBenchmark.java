@@ -0,0 +1,151 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.server.mappings;
+
+import kotlin.Pair;
+import org.platestack.bukkit.scanner.mappings.Mappings;
+import org.platestack.bukkit.scanner.mappings.provider.Srg2NotchURLMappingsProvider;
+import org.platestack.bukkit.scanner.structure.ClassIdentifier;
+import org.platestack.bukkit.scanner.structure.MethodDescriptor;
+import org.platestack.bukkit.scanner.structure.MethodIdentifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the regex based descriptor parsing which was used before with the single pass descriptor scanner,
+ * using all method descriptors of a full SRG mappings load.
+ *
+ * The descriptors shared by the parser are dropped before every round so each round measures a cold parser, like the
+ * first load during the server boot, and the order of both passes alternates so none of them warms the other.
+ *
+ * Arguments: {@code [mappings directory] [minecraft version] [bukkit version] [package version]}
+ */
+class DescriptorBenchmark
+{
+    private static final Pattern VALID_METHOD = Pattern.compile("^\\((\\)V|(\\[*([BCDFIJSZ]|L[^;]+;))*\\)(V|\\[*([BCDFIJSZ]|L[^;]+;)))$");
+    private static final Pattern SIGNATURE = Pattern.compile("\\[*([BCDFIJSZ]|L[^;]+;)");
+    private static final Pattern ARRAY = Pattern.compile("^\\[+");
+
+    private static int legacyParameter(String signature)
+    {
+        StringBuilder b = new StringBuilder(signature);
+        Matcher array = ARRAY.matcher(b);
+        if(array.find())
+            b.delete(0, array.end());
+
+        if(b.charAt(0) == 'L')
+            return ClassIdentifier.create(b.substring(1, b.length() - 1)).toChange().hashCode();
+        return b.charAt(0);
+    }
+
+    private static int legacy(String name, String descriptor)
+    {
+        if(!VALID_METHOD.matcher(descriptor).matches())
+            throw new IllegalStateException("Invalid method descriptor for " + name + ": " + descriptor);
+
+        int result = 0;
+        String returnType = descriptor.substring(descriptor.lastIndexOf(')') + 1);
+        if(!returnType.equals("V"))
+            result += legacyParameter(returnType);
+
+        Matcher parameters = SIGNATURE.matcher(descriptor.substring(1, descriptor.lastIndexOf(')')));
+        while(parameters.find())
+            result += legacyParameter(parameters.group());
+
+        return result;
+    }
+
+    private static int current(String name, String descriptor)
+    {
+        return new MethodIdentifier(name, descriptor).getDescriptor().length()
+                + MethodDescriptor.parse(descriptor, id -> id.toChange()).getParameterTypes().size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, MethodDescriptor> sharedDescriptors() throws ReflectiveOperationException
+    {
+        Field field = MethodDescriptor.class.getDeclaredField("primitives");
+        field.setAccessible(true);
+        return (Map<String, MethodDescriptor>) field.get(null);
+    }
+
+    private static long legacyPass(List<MethodIdentifier> methods, int[] blackhole)
+    {
+        long start = System.nanoTime();
+        for(MethodIdentifier method: methods)
+            blackhole[0] += legacy(method.getName(), method.getDescriptor());
+        return System.nanoTime() - start;
+    }
+
+    private static long currentPass(List<MethodIdentifier> methods, int[] blackhole)
+    {
+        long start = System.nanoTime();
+        for(MethodIdentifier method: methods)
+            blackhole[0] += current(method.getName(), method.getDescriptor());
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException, ReflectiveOperationException
+    {
+        URL base = new File(args.length > 0 ? args[0] : "D:\\_InteliJ\\org.platestack\\Mappings").toURI().toURL();
+        String minecraft = args.length > 1 ? args[1] : "1.11.2";
+        String bukkit = args.length > 2 ? args[2] : "1.11.2-R0.1-SNAPSHOT";
+        String packageVersion = args.length > 3 ? args[3] : "v1_11_R1";
+
+        long start = System.nanoTime();
+        Mappings mappings = new Srg2NotchURLMappingsProvider(base, Logger.getLogger("main")).invoke(minecraft, bukkit, packageVersion);
+        System.out.println("Full mappings load: " + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+        List<MethodIdentifier> methods = new ArrayList<>();
+        for(Map.Entry<Pair<ClassIdentifier, MethodIdentifier>, Pair<ClassIdentifier, MethodIdentifier>> entry: mappings.getMethods().entrySet())
+        {
+            methods.add(entry.getKey().getSecond());
+            methods.add(entry.getValue().getSecond());
+        }
+
+        System.out.println("Method descriptors: " + methods.size());
+        Map<String, MethodDescriptor> shared = sharedDescriptors();
+        for(int round = 0; round < 10; round++)
+        {
+            int[] blackhole = new int[1];
+            shared.clear();
+
+            long legacy, current;
+            if(round % 2 == 0)
+            {
+                legacy = legacyPass(methods, blackhole);
+                current = currentPass(methods, blackhole);
+            }
+            else
+            {
+                current = currentPass(methods, blackhole);
+                legacy = legacyPass(methods, blackhole);
+            }
+
+            System.out.println("Round " + round + ": regex " + legacy / 1_000_000 + "ms, scanner " + current / 1_000_000 + "ms (" + blackhole[0] + ")");
+        }
+    }
+}
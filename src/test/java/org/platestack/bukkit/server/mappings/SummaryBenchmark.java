@@ -0,0 +1,97 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.server.mappings;
+
+import org.platestack.bukkit.scanner.rework.ClassSummary;
+import org.platestack.bukkit.scanner.rework.JarResourceLoader;
+import org.platestack.bukkit.scanner.structure.ClassIdentifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the ASM based class summary parser with the class header parser, using all classes of a jar.
+ * The summaries produced by both parsers are checked to be equal before the timed rounds.
+ *
+ * Arguments: {@code <server jar>}
+ */
+class SummaryBenchmark
+{
+    private static String describe(ClassSummary summary)
+    {
+        StringBuilder b = new StringBuilder()
+                .append(summary.getAccess()).append(' ')
+                .append(summary.getSuperclass()).append(' ')
+                .append(summary.getInterfaces());
+
+        for(ClassSummary.Field field: summary.getFields().values())
+            b.append(' ').append(field.getId()).append(':').append(field.getDescriptor()).append(':').append(field.getAccess());
+
+        for(ClassSummary.Method method: summary.getMethods().values())
+            b.append(' ').append(method.getId()).append(':').append(method.getAccess());
+
+        return b.toString();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        File jar = new File(args[0]);
+        List<ClassIdentifier> ids = new ArrayList<>();
+        List<byte[]> classes = new ArrayList<>();
+        try(JarResourceLoader loader = new JarResourceLoader(Collections.singletonList(jar), null))
+        {
+            for(JarResourceLoader.Entry entry: loader.getJars().get(0).getEntries().values())
+            {
+                String name = entry.getName();
+                if(!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("META-INF/"))
+                    continue;
+
+                ids.add(ClassIdentifier.create(name.substring(0, name.length() - 6)));
+                classes.add(entry.read());
+            }
+        }
+
+        System.out.println("Classes: " + classes.size());
+        for(int i = 0; i < classes.size(); i++)
+        {
+            String asm = describe(ClassSummary.Parser.ASM.parse(ids.get(i), classes.get(i)));
+            String header = describe(ClassSummary.Parser.HEADER.parse(ids.get(i), classes.get(i)));
+            if(!asm.equals(header))
+                throw new IllegalStateException("Different summaries for " + ids.get(i) + ":\n" + asm + "\n" + header);
+        }
+
+        for(int round = 0; round < 10; round++)
+        {
+            int blackhole = 0;
+
+            long start = System.nanoTime();
+            for(int i = 0; i < classes.size(); i++)
+                blackhole += ClassSummary.Parser.ASM.parse(ids.get(i), classes.get(i)).getMethods().size();
+            long asm = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < classes.size(); i++)
+                blackhole += ClassSummary.Parser.HEADER.parse(ids.get(i), classes.get(i)).getMethods().size();
+            long header = System.nanoTime() - start;
+
+            System.out.println("Round " + round + ": asm " + asm / 1_000_000 + "ms, header " + header / 1_000_000 + "ms (" + blackhole + ")");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import org.platestack.bukkit.scanner.structure.FieldIdentifier
+import org.platestack.bukkit.scanner.structure.MethodIdentifier
+import org.platestack.bukkit.scanner.structure.PackageIdentifier
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+
+object BinaryMappingsSpec : Spek({
+    describe("the binary mappings") {
+        val mappings = Mappings().apply {
+            packages[PackageIdentifier("")] = PackageIdentifier("net/minecraft/server/v1_11_R1")
+            packages[PackageIdentifier("a/b")] = PackageIdentifier("c")
+
+            val server = ClassIdentifier("net/minecraft/server/v1_11_R1/MinecraftServer")
+            val entity = ClassIdentifier("net/minecraft/server/v1_11_R1/Entity")
+            val inner = ClassIdentifier("net/minecraft/server/v1_11_R1/Entity\$Inner")
+            classes[ClassIdentifier("a")] = server
+            classes[ClassIdentifier("b")] = entity
+            classes[ClassIdentifier("b\$a")] = inner
+
+            fields[ClassIdentifier("b") to FieldIdentifier("a")] = entity to FieldIdentifier("locX")
+            fields[ClassIdentifier("b\$a") to FieldIdentifier("a")] = inner to FieldIdentifier("owner")
+            methods[ClassIdentifier("b") to MethodIdentifier("a", "(La;[[Lb\$a;IJ)V")] =
+                    entity to MethodIdentifier("tick", "(Lnet/minecraft/server/v1_11_R1/MinecraftServer;[[Lnet/minecraft/server/v1_11_R1/Entity\$Inner;IJ)V")
+            methods[ClassIdentifier("a") to MethodIdentifier("b", "()La;")] =
+                    server to MethodIdentifier("getServer", "()Lnet/minecraft/server/v1_11_R1/MinecraftServer;")
+        }
+
+        fun encode(source: String? = null) = ByteArrayOutputStream().also { mappings.exportBinary(it, source) }.toByteArray()
+
+        it("reads the same mappings which were written") {
+            val read = BinaryMappings.read(ByteBuffer.wrap(encode()))
+            assertEquals(mappings.packages, read.packages)
+            assertEquals(mappings.classes, read.classes)
+            assertEquals(mappings.fields, read.fields)
+            assertEquals(mappings.methods, read.methods)
+        }
+
+        it("reads empty mappings") {
+            val bytes = ByteArrayOutputStream().also { Mappings().exportBinary(it) }.toByteArray()
+            val read = BinaryMappings.read(ByteBuffer.wrap(bytes))
+            assertEquals(0, read.packages.size + read.classes.size + read.fields.size + read.methods.size)
+        }
+
+        it("keeps the fingerprint of the sources") {
+            assertEquals("srg/1:0123456789abcdef", BinaryMappings.source(ByteBuffer.wrap(encode("srg/1:0123456789abcdef"))))
+            assertNull(BinaryMappings.source(ByteBuffer.wrap(encode())))
+        }
+
+        it("detects a corrupted body with the checksum") {
+            val bytes = encode()
+            bytes[bytes.size - 1] = (bytes[bytes.size - 1] + 1).toByte()
+            assertFailsWith<IOException> { BinaryMappings.read(ByteBuffer.wrap(bytes)) }
+        }
+
+        it("rejects truncated mappings") {
+            val bytes = encode()
+            assertFailsWith<IOException> { BinaryMappings.read(ByteBuffer.wrap(bytes, 0, bytes.size / 2).slice()) }
+        }
+
+        it("rejects buffers of other formats") {
+            assertFailsWith<IOException> { BinaryMappings.read(ByteBuffer.wrap(ByteArray(64))) }
+        }
+    }
+})
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.mappings.provider
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import org.platestack.bukkit.scanner.filterComments
+import org.platestack.bukkit.scanner.mappings.Mappings
+import org.platestack.bukkit.scanner.structure.*
+import java.io.File
+import java.nio.file.Files
+import java.util.logging.Logger
+import kotlin.streams.toList
+import kotlin.test.assertEquals
+
+/**
+ * Compares the streaming providers with the split based parsing which they replaced
+ */
+object MappingsProvidersSpec : Spek({
+    val logger = Logger.getLogger("MappingsProvidersSpec")
+    val packageVersion = "v1_11_R1"
+    val dir = Files.createTempDirectory("mappings").toFile().apply { deleteOnExit() }
+    val base = dir.toURI().toURL()
+
+    fun write(path: String, vararg lines: String) = File(dir, path).apply {
+        parentFile.mkdirs()
+        writeText(lines.joinToString("\n"))
+        deleteOnExit()
+    }
+
+    fun lines(path: String) = File(dir, path).bufferedReader().use { it.lines().filterComments().toList() }
+
+    fun assertSameMappings(expected: Mappings, actual: Mappings) {
+        assertEquals(expected.packages, actual.packages)
+        assertEquals(expected.classes, actual.classes)
+        assertEquals(expected.fields, actual.fields)
+        assertEquals(expected.methods, actual.methods)
+    }
+
+    write("forge/1.11.2/list.txt", "# The SRG mappings", "", "  a  ")
+    val srg = write("forge/1.11.2/a/notch-srg.srg",
+            "# Notch to SRG",
+            "PK: . net/minecraft/server",
+            "PK: net/minecraft net/minecraft",
+            "",
+            "CL: a net/minecraft/server/MinecraftServer",
+            "  CL: b net/minecraft/entity/Entity  ",
+            "CL: b\$a net/minecraft/entity/Entity\$Inner",
+            "FD: b/a net/minecraft/entity/Entity/field_70165_t",
+            "FD: b\$a/a net/minecraft/entity/Entity\$Inner/field_1_a",
+            "   # An indented comment",
+            "MD: b/a (La;[[Lb\$a;IJ)V net/minecraft/entity/Entity/func_70071_h_ (Lnet/minecraft/server/MinecraftServer;[[Lnet/minecraft/entity/Entity\$Inner;IJ)V",
+            "MD: a/b ()La; net/minecraft/server/MinecraftServer/func_71276_C ()Lnet/minecraft/server/MinecraftServer;",
+            "MD: a/c ()V net/minecraft/server/MinecraftServer/func_71256_s ()V"
+    )
+
+    write("craftbukkit/1.11.2/version.txt", "1_11_R1")
+    write("craftbukkit/1.11.2/package.srg", "# The package", "./ net/minecraft/server/")
+    val classes = write("craftbukkit/1.11.2/bukkit-1.11.2-cl.csrg",
+            "# Bukkit classes",
+            "a MinecraftServer",
+            "",
+            "  b Entity  ",
+            "b\$a Entity\$Inner",
+            "c chunk/Chunk"
+    )
+    val members = write("craftbukkit/1.11.2/bukkit-1.11.2-members.csrg",
+            "# Bukkit members",
+            "Entity a locX",
+            "Entity\$Inner a owner",
+            "Entity b (LMinecraftServer;[[LEntity\$Inner;IJ)V tick",
+            "",
+            "  MinecraftServer b ()LMinecraftServer; getServer  ",
+            "MinecraftServer c (LOmitted;)V run",
+            "Omitted a (LEntity;)LOmitted\$Nested; create",
+            "Entity c( broken",
+            "# The end"
+    )
+
+    /**
+     * The SRG parsing before the lexer: split every line and group the lines by their type
+     */
+    fun legacySrg(): Mappings {
+        val groups = lines("forge/1.11.2/a/notch-srg.srg").map { it.split(' ', limit = 5) }.groupBy { it.first() }
+        val mappings = Mappings()
+        fun String.packageToken() = PackageIdentifier(if(this == ".") "" else this)
+        fun String.classToken() = ClassIdentifier(this)
+        fun String.fieldToken() = substringBeforeLast('/').classToken() to FieldIdentifier(substringAfterLast('/'))
+        infix fun String.method(desc: String) = substringBeforeLast('/').classToken() to MethodIdentifier(substringAfterLast('/'), desc)
+        mappings.packages += groups["PK:"]!!.associate { it[1].packageToken() to it[2].packageToken() }
+        mappings.classes += groups["CL:"]!!.associate { it[1].classToken() to it[2].classToken() }
+        mappings.fields += groups["FD:"]!!.associate { it[1].fieldToken() to it[2].fieldToken() }
+        mappings.methods += groups["MD:"]!!.associate { (it[1] method it[2]) to (it[3] method it[4]) }
+        return mappings.inverse()
+    }
+
+    /**
+     * The CSRG parsing before the lexer: split every line and partition the members by their number of fields
+     */
+    fun legacyBukkit(): Mappings {
+        val mappings = Mappings()
+        val nms = PackageIdentifier("net/minecraft/server/$packageVersion")
+        mappings.packages[PackageIdentifier("")] = nms
+        mappings.classes += lines("craftbukkit/1.11.2/bukkit-1.11.2-cl.csrg")
+                .map { it.split(' ', limit = 2) }
+                .associate { ClassIdentifier(it[0]) to ClassIdentifier("net/minecraft/server/$packageVersion/${it[1]}") }
+
+        val (fieldList, methodList) = lines("craftbukkit/1.11.2/bukkit-1.11.2-members.csrg")
+                .map { it.split(' ', limit = 4) }
+                .partition { it.size == 3 }
+
+        val emptyPackage = PackageIdentifier(null, "")
+        fun ClassIdentifier.toNoPackage(): ClassIdentifier =
+                if(`package` == emptyPackage) this else ClassIdentifier(emptyPackage, parent?.toNoPackage(), className)
+
+        val fromNoPackage = Mappings().also { it.classes += mappings.classes.map { it.value.let { it.toNoPackage() to it } } }
+        val inverse = mappings.inverse()
+
+        fun remapOrRegisterNoPackage(classId: ClassIdentifier): ClassIdentifier {
+            return fromNoPackage.classes[classId] ?: run {
+                val to = ClassIdentifier(
+                        classId.`package`.takeIf { it.prefix.isNotBlank() && it.fullName != "net/minecraft/server" }?.let {
+                            if(it.fullName.startsWith("net/minecraft/server/"))
+                                PackageIdentifier(it.fullName.replace("net/minecraft/server/", nms.fullName))
+                            else
+                                it
+                        } ?: nms,
+                        classId.parent?.let { remapOrRegisterNoPackage(it) },
+                        classId.className
+                )
+                mappings.classes[classId] = to
+                inverse.classes[to] = classId
+                fromNoPackage.classes[classId] = to
+                to
+            }
+        }
+
+        mappings.fields += fieldList.filterNot { (_, from, to) -> '(' in from || '(' in to }.associate { (className, from, to) ->
+            val classId = remapOrRegisterNoPackage(ClassIdentifier(className))
+            (inverse.classes[classId]!! to FieldIdentifier(from)) to (classId to FieldIdentifier(to))
+        }
+
+        mappings.methods += methodList.associate { (className, fromMethodName, noPackageSignature, toMethodName) ->
+            val classId = remapOrRegisterNoPackage(ClassIdentifier(className))
+            val methodSignature = MethodDescriptor(noPackageSignature) { remapOrRegisterNoPackage(it).toChange() }
+            val inverseSignature = MethodDescriptor(methodSignature.to) { inverse.classes[it]!!.toChange() }
+            (inverse.classes[classId]!! to MethodIdentifier(fromMethodName, inverseSignature.to)) to
+                    (classId to MethodIdentifier(toMethodName, methodSignature.to))
+        }
+
+        return mappings
+    }
+
+    describe("the SRG mappings provider") {
+        it("reads the same mappings as the split based parser") {
+            assertSameMappings(legacySrg(), Srg2NotchURLMappingsProvider(base, logger)("1.11.2", "1.11.2-R0.1-SNAPSHOT", packageVersion))
+        }
+
+        it("reads files which end with a line break") {
+            srg.appendText("\n")
+            assertSameMappings(legacySrg(), Srg2NotchURLMappingsProvider(base, logger)("1.11.2", "1.11.2-R0.1-SNAPSHOT", packageVersion))
+        }
+    }
+
+    describe("the Bukkit mappings provider") {
+        it("reads the same mappings as the split based parser") {
+            assertSameMappings(legacyBukkit(), BukkitURLMappingsProvider(base, logger)("1.11.2", "1.11.2-R0.1-SNAPSHOT", packageVersion))
+        }
+
+        it("reads the same mappings with Windows line breaks") {
+            classes.writeText(classes.readText().replace("\n", "\r\n"))
+            members.writeText(members.readText().replace("\n", "\r\n"))
+            assertSameMappings(legacyBukkit(), BukkitURLMappingsProvider(base, logger)("1.11.2", "1.11.2-R0.1-SNAPSHOT", packageVersion))
+        }
+    }
+})
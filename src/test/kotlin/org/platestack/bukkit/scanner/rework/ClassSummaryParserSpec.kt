@@ -0,0 +1,73 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import org.objectweb.asm.ClassReader
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import java.io.File
+import java.util.zip.ZipFile
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+object ClassSummaryParserSpec : Spek({
+    describe("the class header parser") {
+        fun assertSameSummary(expected: ClassSummary, actual: ClassSummary) {
+            val name = expected.classId.fullName
+            assertEquals(expected.classId, actual.classId, name)
+            assertEquals(expected.access, actual.access, "$name access")
+            assertEquals(expected.superclass, actual.superclass, "$name superclass")
+            assertEquals(expected.interfaces.toList(), actual.interfaces.toList(), "$name interfaces")
+            assertEquals(expected.fields.keys.toList(), actual.fields.keys.toList(), "$name fields")
+            expected.fields.values.zip(actual.fields.values).forEach { (e, a) ->
+                assertEquals(e.id, a.id, "$name field")
+                assertEquals(e.descriptor, a.descriptor, "$name ${e.id} descriptor")
+                assertEquals(e.access, a.access, "$name ${e.id} access")
+            }
+            assertEquals(expected.methods.keys.toList(), actual.methods.keys.toList(), "$name methods")
+            expected.methods.values.zip(actual.methods.values).forEach { (e, a) ->
+                assertEquals(e.id, a.id, "$name method")
+                assertEquals(e.access, a.access, "$name ${e.id} access")
+            }
+        }
+
+        fun assertSameSummaries(jar: File) {
+            var classes = 0
+            ZipFile(jar).use { zip ->
+                zip.entries().asSequence()
+                        .filter { it.name.endsWith(".class") && !it.name.endsWith("module-info.class") }
+                        .forEach { entry ->
+                            val bytes = zip.getInputStream(entry).use { it.readBytes() }
+                            val classId = ClassIdentifier(entry.name.removeSuffix(".class"))
+                            assertSameSummary(ClassSummary.Parser.ASM.parse(classId, bytes), ClassSummary.Parser.HEADER.parse(classId, bytes))
+                            classes++
+                        }
+            }
+            assertTrue(classes > 0, "No classes were found in $jar")
+        }
+
+        it("reads the same summaries as ASM from the ASM classes") {
+            assertSameSummaries(File(ClassReader::class.java.protectionDomain.codeSource.location.toURI()))
+        }
+
+        it("reads the same summaries as ASM from the Kotlin classes") {
+            assertSameSummaries(File(Unit::class.java.protectionDomain.codeSource.location.toURI()))
+        }
+    }
+})
@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.rework
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import org.platestack.bukkit.scanner.mappings.Mappings
+import org.platestack.bukkit.scanner.structure.ClassIdentifier
+import org.platestack.bukkit.scanner.structure.FieldIdentifier
+import org.platestack.bukkit.scanner.structure.MethodIdentifier
+import java.io.File
+import java.io.IOException
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+object RemapEnvironmentSnapshotSpec : Spek({
+    describe("a remap environment snapshot") {
+        val mappings = Mappings().apply {
+            val visitor = ClassIdentifier("org/objectweb/asm/ClassVisitor")
+            val node = ClassIdentifier("org/objectweb/asm/tree/ClassNode")
+            classes[ClassIdentifier("org/objectweb/asm/ClassWriter")] = ClassIdentifier("a/a")
+            classes[ClassIdentifier("org/objectweb/asm/ClassReader")] = ClassIdentifier("a/b")
+            classes[node] = ClassIdentifier("a/c")
+            methods[visitor to MethodIdentifier("visitEnd", "()V")] = visitor to MethodIdentifier("a", "()V")
+            fields[node to FieldIdentifier("name")] = ClassIdentifier("a/c") to FieldIdentifier("a")
+        }
+
+        val environment by lazy { mappings.toFullStructure(HotScanner(RemapEnvironmentSnapshotSpec::class.java.classLoader)) }
+        val key = RemapEnvironmentSnapshot.Key("1.11.2", "1.11.2-R0.1-SNAPSHOT", "v1_11_R1", RemapEnvironmentSnapshot.hash(mappings))
+
+        fun export(environment: RemapEnvironment): Map<String, String> {
+            val dir = createTempDir()
+            try {
+                environment.export(dir)
+                return dir.listFiles().associate { it.name to it.readText() }
+            }
+            finally {
+                dir.deleteRecursively()
+            }
+        }
+
+        fun snapshot(): File = createTempFile(suffix = ".snapshot").also {
+            RemapEnvironmentSnapshot.write(environment, key, it)
+            it.deleteOnExit()
+        }
+
+        it("loads the same changes and structures which were written") {
+            val loaded = RemapEnvironmentSnapshot.read(snapshot(), key)!!
+            assertEquals(export(environment), export(loaded))
+        }
+
+        it("loads an environment which inverses like the original") {
+            val loaded = RemapEnvironmentSnapshot.read(snapshot(), key)!!
+            assertEquals(export(environment.inverse()), export(loaded.inverse()))
+        }
+
+        it("is not loaded when the key is different") {
+            val file = snapshot()
+            assertNull(RemapEnvironmentSnapshot.read(file, key.copy(inputsHash = "other")))
+            assertNull(RemapEnvironmentSnapshot.read(file, key.copy(packageVersion = "v1_12_R1")))
+            assertNull(RemapEnvironmentSnapshot.read(file, key.copy(base = "jdk")))
+        }
+
+        it("reads only the key") {
+            assertEquals(key, RemapEnvironmentSnapshot.readKey(snapshot()))
+        }
+
+        it("is not found when the file is missing") {
+            assertNull(RemapEnvironmentSnapshot.read(File(createTempDir().also { it.deleteOnExit() }, "missing"), key))
+        }
+
+        it("refers to the structures of the base environments without copying them") {
+            val scanner = HotScanner(RemapEnvironmentSnapshotSpec::class.java.classLoader)
+            val objectId = ClassIdentifier("java/lang/Object")
+            val visitor = ClassIdentifier("org/objectweb/asm/ClassVisitor")
+            val base = RemapEnvironment(null, true).also { scanner.provideFull(it, objectId) }
+            val built = mappings.toFullStructure(scanner, 1, base).inverse()
+            assertNull(built.classes[objectId])
+            assertSame(base[objectId], built[visitor]!!.`super`)
+
+            val file = createTempFile(suffix = ".snapshot").also { it.deleteOnExit() }
+            RemapEnvironmentSnapshot.write(built, key, file)
+            val loaded = RemapEnvironmentSnapshot.read(file, key, base)!!
+            assertNull(loaded.classes[objectId])
+            assertSame(base[objectId], loaded[visitor]!!.`super`)
+            assertEquals(export(built), export(loaded))
+        }
+
+        it("rejects a corrupted payload") {
+            val file = snapshot()
+            val bytes = file.readBytes()
+            bytes[bytes.size - 16] = (bytes[bytes.size - 16] + 1).toByte()
+            file.writeBytes(bytes)
+            assertFailsWith<IOException> { RemapEnvironmentSnapshot.read(file, key) }
+        }
+    }
+})
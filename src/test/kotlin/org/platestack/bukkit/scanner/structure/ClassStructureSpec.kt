@@ -0,0 +1,73 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.platestack.bukkit.scanner.structure
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+object ClassStructureSpec : Spek({
+    describe("the reverse lookups of a class structure") {
+        val parentClass = ClassIdentifier("a/Parent").toChange()
+        val parent = ClassStructure(parentClass, null, false, emptySet())
+        val inherited = MethodStructure(MethodIdentifier("run", "(La/Parent;)V").toChange(), parentClass, AccessLevel.PUBLIC, false)
+        parent.methods[inherited.method.from] = inherited
+
+        val childClass = ClassIdentifier("a/Child").toChange()
+        val child = ClassStructure(childClass, parent, false, emptySet())
+        fun field(name: String) = FieldStructure(FieldIdentifier(name).toChange(), childClass, AccessLevel.PUBLIC, false, null).also {
+            child.fields[it.field.from] = it
+        }
+
+        val a = field("a")
+        val b = field("b")
+
+        it("finds the members by their original or target names") {
+            a.field.name.to = "x"
+            assertSame(a, child.findReverse(FieldIdentifier("x")))
+            assertSame(a, child.findReverse(FieldIdentifier("a")))
+            assertNull(child.findReverse(FieldIdentifier("y")))
+        }
+
+        it("follows the renames made after a lookup") {
+            a.field.name.to = "x"
+            assertSame(a, child.findReverse(FieldIdentifier("x")))
+            a.field.name.to = "y"
+            assertSame(a, child.findReverse(FieldIdentifier("y")))
+            assertNull(child.findReverse(FieldIdentifier("x")))
+        }
+
+        it("finds the members which were added after a lookup") {
+            assertNull(child.findReverse(FieldIdentifier("c")))
+            val c = field("c").also { it.field.name.to = "z" }
+            assertSame(c, child.findReverse(FieldIdentifier("z")))
+        }
+
+        it("keeps the lowest original name when several members share a target name") {
+            b.field.name.to = "shared"
+            a.field.name.to = "shared"
+            assertSame(a, child.findReverse(FieldIdentifier("shared")))
+        }
+
+        it("finds inherited methods by their target names") {
+            inherited.method.name.to = "execute"
+            assertSame(inherited, child.findReverse(MethodIdentifier("execute", "(La/Parent;)V")))
+            assertSame(inherited, child.findReverse(MethodIdentifier("run", "(La/Parent;)V"), child))
+        }
+    }
+})
@@ -0,0 +1,122 @@
+/*
+ *  Copyright (C) 2017 José Roberto de Araújo Júnior
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.platestack.bukkit.scanner.transform
+
+import org.jetbrains.spek.api.Spek
+import org.jetbrains.spek.api.dsl.describe
+import org.jetbrains.spek.api.dsl.it
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.*
+import java.util.logging.Logger
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+object RemapClassCacheSpec : Spek({
+    describe("the remapped class cache") {
+        val logger = Logger.getLogger("RemapClassCacheSpec")
+        val random = Random(42)
+        var file = File("")
+
+        fun bytes(size: Int) = ByteArray(size).also { random.nextBytes(it) }
+        fun cache(fingerprint: String = "env/1", maxSize: Long = 1L shl 20) = RemapClassCache(file, fingerprint, logger, maxSize)
+
+        beforeEachTest {
+            file = File.createTempFile("remap", ".cache")
+        }
+
+        afterEachTest {
+            file.delete()
+        }
+
+        it("returns the stored classes") {
+            cache().use { cache ->
+                val original = bytes(500)
+                val remapped = bytes(700)
+                val key = cache.key(original)
+                assertNull(cache[key])
+                cache[key] = remapped
+                assertTrue(Arrays.equals(remapped, cache[key]))
+                assertNull(cache[cache.key(bytes(500))])
+            }
+        }
+
+        it("keeps the classes when it's reopened with the same fingerprint") {
+            val entries = List(20) { bytes(100 + it) to bytes(200 + it) }
+            cache().use { cache -> entries.forEach { (original, remapped) -> cache[cache.key(original)] = remapped } }
+            cache().use { cache ->
+                entries.forEach { (original, remapped) -> assertTrue(Arrays.equals(remapped, cache[cache.key(original)])) }
+            }
+        }
+
+        it("discards the classes when the fingerprint changes") {
+            val original = bytes(100)
+            cache().use { it[it.key(original)] = bytes(100) }
+            cache("env/2").use { assertNull(it[it.key(original)]) }
+        }
+
+        it("ignores a partially written entry") {
+            val first = bytes(100)
+            val second = bytes(100)
+            val remapped = bytes(300)
+            cache().use {
+                it[it.key(first)] = remapped
+                it[it.key(second)] = bytes(300)
+            }
+
+            RandomAccessFile(file, "rw").use { it.setLength(it.length() - 10) }
+            cache().use {
+                assertTrue(Arrays.equals(remapped, it[it.key(first)]))
+                assertNull(it[it.key(second)])
+            }
+        }
+
+        it("never grows beyond its maximum size") {
+            val maxSize = 16L shl 10
+            cache(maxSize = maxSize).use { cache ->
+                val entries = List(100) { bytes(64) to bytes(1000) }
+                entries.forEach { (original, remapped) ->
+                    cache[cache.key(original)] = remapped
+                    assertTrue(file.length() <= maxSize)
+                }
+
+                val (original, remapped) = entries.last()
+                assertTrue(Arrays.equals(remapped, cache[cache.key(original)]))
+            }
+        }
+
+        it("doesn't store classes which can't fit in an empty cache") {
+            cache(maxSize = 4096).use { cache ->
+                val original = bytes(100)
+                cache[cache.key(original)] = bytes(8192)
+                assertNull(cache[cache.key(original)])
+                assertTrue(file.length() <= 4096)
+            }
+        }
+
+        it("stores entries with the same content only once") {
+            cache().use { cache ->
+                val key = cache.key(bytes(100))
+                cache[key] = bytes(300)
+                val length = file.length()
+                cache[key] = bytes(300)
+                assertEquals(length, file.length())
+            }
+        }
+    }
+})